@@ -0,0 +1,121 @@
+package com.intchip;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The memory layout of an avr device, looked up by its signature.
+ *
+ * The bootloader region is the one used by the usual arduino bootloaders,
+ * i.e. optiboot, caterina for the 32U4 and the wiring bootloader for the
+ * 1280/2560.
+ */
+public class DeviceProfile {
+
+    /** The largest page size of all known devices. */
+    public static final int MAX_PAGESIZE = 256;
+
+    /** STK500 and STK500v2 transfer at most 256 bytes with one command. */
+    static final int MAX_BLOCKSIZE = 256;
+
+    private static final DeviceProfile[] PROFILES = {
+            //                name          signature         flash       eeprom  page  boot start  boot size
+            new DeviceProfile("ATmega8",    0x1e, 0x93, 0x07,   8 * 1024,  512,   64, 0x01e00,   512),
+            new DeviceProfile("ATmega168",  0x1e, 0x94, 0x06,  16 * 1024,  512,  128, 0x03e00,   512),
+            new DeviceProfile("ATmega168P", 0x1e, 0x94, 0x0b,  16 * 1024,  512,  128, 0x03e00,   512),
+            new DeviceProfile("ATmega328",  0x1e, 0x95, 0x14,  32 * 1024, 1024,  128, 0x07e00,   512),
+            new DeviceProfile("ATmega328P", 0x1e, 0x95, 0x0f,  32 * 1024, 1024,  128, 0x07e00,   512),
+            new DeviceProfile("ATmega32U4", 0x1e, 0x95, 0x87,  32 * 1024, 1024,  128, 0x07000,  4096),
+            new DeviceProfile("ATmega644P", 0x1e, 0x96, 0x0a,  64 * 1024, 2048,  256, 0x0fc00,  1024),
+            new DeviceProfile("ATmega1280", 0x1e, 0x97, 0x03, 128 * 1024, 4096,  256, 0x1f000,  4096),
+            new DeviceProfile("ATmega1284P",0x1e, 0x97, 0x05, 128 * 1024, 4096,  256, 0x1fc00,  1024),
+            new DeviceProfile("ATmega2560", 0x1e, 0x98, 0x01, 256 * 1024, 4096,  256, 0x3e000,  8192),
+    };
+
+    /** The profiles of the boards found on each port. */
+    private static final ConcurrentHashMap<String, DeviceProfile> byPort = new ConcurrentHashMap<>();
+
+    public final String name;
+    public final byte[] signature;
+    public final int flashSize;
+    public final int eepromSize;
+    public final int pageSize;
+    public final int bootStart;
+    public final int bootSize;
+    /** The largest block to read with one command. */
+    public final int maxReadBlock;
+    /** The largest eeprom block to write or read with one command. */
+    public final int maxEepromBlock;
+
+    public DeviceProfile(String name, int sig0, int sig1, int sig2, int flashSize,
+                         int eepromSize, int pageSize, int bootStart, int bootSize) {
+        this.name = name;
+        this.signature = new byte[] {(byte) sig0, (byte) sig1, (byte) sig2};
+        this.flashSize = flashSize;
+        this.eepromSize = eepromSize;
+        this.pageSize = pageSize;
+        this.bootStart = bootStart;
+        this.bootSize = bootSize;
+        this.maxReadBlock = MAX_BLOCKSIZE;
+        this.maxEepromBlock = Math.min(MAX_BLOCKSIZE, eepromSize);
+    }
+
+    /**
+     * @return The profile of the device with the signature, or null if unknown.
+     */
+    public static DeviceProfile forSignature(byte[] signature) {
+        for (DeviceProfile profile : PROFILES) {
+            if (Arrays.equals(profile.signature, Arrays.copyOf(signature, 3)))
+                return profile;
+        }
+        return null;
+    }
+
+    /**
+     * Get the profile of the board behind the protocol, reading the signature
+     * only the first time a port is seen. Note the protocol must be opened.
+     *
+     * @return The profile, or null if the signature can't be read or is unknown.
+     */
+    public static DeviceProfile identify(ProgrammerInterface protocol) {
+        String port = protocol.getSerial().getName();
+
+        DeviceProfile profile = byPort.get(port);
+        if (profile != null)
+            return profile;
+
+        byte[] signature = new byte[3];
+        if (protocol.readSignature(signature) != 0)
+            return null;
+
+        profile = forSignature(signature);
+        if (profile == null) {
+            System.err.println(String.format("%s: unknown device signature %02x%02x%02x",
+                    port, signature[0], signature[1], signature[2]));
+            return null;
+        }
+
+        byPort.put(port, profile);
+        return profile;
+    }
+
+    /**
+     * @return The cached profile of the port, or null.
+     */
+    public static DeviceProfile cached(String port) {
+        return byPort.get(port);
+    }
+
+    /**
+     * Forget the cached profile of the port, e.g. when the board is replaced.
+     */
+    public static void forget(String port) {
+        byPort.remove(port);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (flash %dK, page %d, bootloader at 0x%05x)",
+                name, flashSize / 1024, pageSize, bootStart);
+    }
+}
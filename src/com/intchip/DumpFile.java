@@ -0,0 +1,163 @@
+package com.intchip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The output file of a memory dump, written through a memory mapping
+ * of the whole file, as raw binary or as intel hex.
+ *
+ * The file is sized before the first byte arrives, so the data can be
+ * written into the mapping as it is read from the target, and only
+ * a single intel hex record is buffered on the heap. If the dump is not
+ * finished, the file is cut after the last complete record on close.
+ */
+class DumpFile
+        implements Closeable {
+
+    /** The data bytes of each intel hex record. */
+    static final int RECORD_SIZE = 16;
+
+    private static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final boolean hex;
+    private final int end;
+
+    /** The address of the next byte to write. */
+    private int address;
+    /** The upper 16 bits of the address of the last extended address record. */
+    private int upper;
+
+    private final byte[] record = new byte[RECORD_SIZE];
+    private int recordLength;
+    private boolean finished;
+
+    /**
+     * @param path The file to create, or to overwrite.
+     * @param address The address of the first byte of the dump.
+     * @param length How many bytes to dump.
+     * @param hex true for intel hex, false for raw binary.
+     */
+    DumpFile(String path, int address, int length, boolean hex) throws IOException {
+        this.hex = hex;
+        this.address = address;
+        this.end = address + length;
+        this.upper = 0;
+
+        long size = hex ? hexSize(address, length) : length;
+
+        file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(size);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The size of the intel hex file of the data, with the records
+     * split at the 16 bytes boundaries.
+     */
+    static long hexSize(int address, int length) {
+        long size = 0;
+        int upper = 0;
+        int end = address + length;
+
+        while (address < end) {
+            if (address >>> 16 != upper) {
+                upper = address >>> 16;
+                size += 16;     // :02000004HHHHCC\n
+            }
+            int n = Math.min(end, (address / RECORD_SIZE + 1) * RECORD_SIZE) - address;
+            size += 12 + 2 * n; // :NNAAAA00<data>CC\n
+            address += n;
+        }
+
+        return size + 12;       // :00000001FF\n
+    }
+
+    /**
+     * Append the next bytes of the dump.
+     */
+    void write(byte[] data, int offset, int length) {
+        if (!hex) {
+            map.put(data, offset, length);
+            address += length;
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            record[recordLength++] = data[offset + i];
+
+            int next = address + recordLength;
+            if (next % RECORD_SIZE == 0 || next == end) {
+                putRecord();
+                address = next;
+                recordLength = 0;
+            }
+        }
+    }
+
+    private void putRecord() {
+        if (address >>> 16 != upper) {
+            upper = address >>> 16;
+            putLine(0x0000, 0x04, new byte[] {(byte) (upper >> 8), (byte) upper}, 2);
+        }
+        putLine(address & 0xffff, 0x00, record, recordLength);
+    }
+
+    private void putLine(int offset, int type, byte[] data, int length) {
+        int sum = length + (offset >> 8) + offset + type;
+
+        map.put((byte) ':');
+        putByte(length);
+        putByte(offset >> 8);
+        putByte(offset);
+        putByte(type);
+        for (int i = 0; i < length; i++) {
+            putByte(data[i]);
+            sum += data[i];
+        }
+        putByte(-sum);
+        map.put((byte) '\n');
+    }
+
+    private void putByte(int b) {
+        map.put(DIGITS[(b >> 4) & 0xf]);
+        map.put(DIGITS[b & 0xf]);
+    }
+
+    /**
+     * Write the dumped data back to the storage.
+     */
+    void force() {
+        map.force();
+    }
+
+    /**
+     * Complete the dump, after all the data is written.
+     */
+    void finish() {
+        if (hex)
+            putLine(0x0000, 0x01, record, 0);
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            map.force();
+            if (!finished)
+                file.setLength(map.position());
+        } finally {
+            file.close();
+        }
+    }
+}
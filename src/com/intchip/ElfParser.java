@@ -0,0 +1,105 @@
+package com.intchip;
+
+import cz.jaybee.intelhex.DataListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A minimal parser of the 32 bits little endian ELF files produced by
+ * avr-gcc, with the same interface as the intel hex Parser.
+ *
+ * The loadable segments are reported at their load (physical) address,
+ * as avr-objcopy does, i.e. the flash contents below 0x800000 and the
+ * eeprom contents at 0x810000. The data is reported in records of 16 bytes.
+ */
+public class ElfParser {
+
+    static final int PT_LOAD = 1;
+    static final int RECORD_SIZE = 16;
+
+    private final InputStream is;
+    private DataListener listener;
+
+    public ElfParser(InputStream is) {
+        this.is = is;
+    }
+
+    public void setDataListener(DataListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the bytes start with the ELF magic.
+     */
+    public static boolean isElf(byte[] head) {
+        return head.length >= 4 && head[0] == 0x7f &&
+                head[1] == 'E' && head[2] == 'L' && head[3] == 'F';
+    }
+
+    public void parse() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = is.read(chunk)) > 0)
+            bos.write(chunk, 0, n);
+
+        byte[] elf = bos.toByteArray();
+        if (!isElf(elf) || elf.length < 52)
+            throw new IOException("not an ELF file");
+        if (elf[4] != 1 || elf[5] != 1)
+            throw new IOException("not a 32 bits little endian ELF file");
+
+        ByteBuffer bb = ByteBuffer.wrap(elf).order(ByteOrder.LITTLE_ENDIAN);
+        int phoff = bb.getInt(28);
+        int phentsize = bb.getShort(42) & 0xffff;
+        int phnum = bb.getShort(44) & 0xffff;
+
+        // {file offset, physical address, file size} of each segment
+        List<long[]> segments = new ArrayList<>();
+        for (int i = 0; i < phnum; i++) {
+            int ph = phoff + i * phentsize;
+            if (ph + 32 > elf.length)
+                throw new IOException("truncated ELF file");
+
+            long offset = bb.getInt(ph + 4) & 0xffffffffL;
+            long paddr = bb.getInt(ph + 12) & 0xffffffffL;
+            long filesz = bb.getInt(ph + 16) & 0xffffffffL;
+
+            if (bb.getInt(ph) != PT_LOAD || filesz == 0)
+                continue;
+            if (offset + filesz > elf.length)
+                throw new IOException("truncated ELF file");
+
+            segments.add(new long[] {offset, paddr, filesz});
+        }
+
+        Collections.sort(segments, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[1], b[1]);
+            }
+        });
+
+        for (long[] segment : segments) {
+            int offset = (int) segment[0];
+            int size = (int) segment[2];
+
+            for (int i = 0; i < size; i += RECORD_SIZE) {
+                int length = Math.min(RECORD_SIZE, size - i);
+                listener.data(segment[1] + i,
+                        Arrays.copyOfRange(elf, offset + i, offset + i + length));
+            }
+        }
+
+        listener.eof();
+    }
+}
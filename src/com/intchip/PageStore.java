@@ -0,0 +1,191 @@
+package com.intchip;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * A store of immutable memory pages, deduplicated by their contents.
+ *
+ * The images built on a store (see PagedImage) share the pages with the
+ * same bytes, e.g. the libraries, the padding and the blank pages of
+ * many firmware variants, so the memory used grows with the number of
+ * distinct pages instead of the number of images. The pages are weakly
+ * held, a page is freed when no image uses it anymore.
+ *
+ * A store is safe to use from many threads.
+ */
+public class PageStore {
+
+    /**
+     * An immutable page of memory contents.
+     */
+    public static final class Page {
+        /** The bytes of the page, never modified once the page is stored. */
+        final byte[] data;
+        final int offset;
+        final int length;
+        final long hash;
+        final boolean blank;
+
+        private Page(byte[] data, int offset, int length, long hash) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+
+            boolean ff = true;
+            for (int i = 0; i < length && ff; i++)
+                ff = data[offset + i] == (byte) 0xff;
+            this.blank = ff;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte get(int index) {
+            return data[offset + index];
+        }
+
+        /**
+         * @return The 64 bits hash of the contents.
+         */
+        public long hash() {
+            return hash;
+        }
+
+        /**
+         * @return true if all the bytes are 0xff, i.e. erased flash.
+         */
+        public boolean isBlank() {
+            return blank;
+        }
+
+        /**
+         * Copy the contents into dst at offset.
+         */
+        public void copyTo(byte[] dst, int offset) {
+            System.arraycopy(data, this.offset, dst, offset, length);
+        }
+
+        /**
+         * @return true if the page has the same bytes as mem from offset.
+         */
+        public boolean matches(byte[] mem, int offset) {
+            for (int i = 0; i < length; i++) {
+                if (mem[offset + i] != data[this.offset + i])
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Page))
+                return false;
+
+            Page page = (Page) obj;
+            return page.hash == hash && page.length == length && page.matches(data, offset);
+        }
+    }
+
+    private final WeakHashMap<Page, WeakReference<Page>> pages = new WeakHashMap<>();
+    private long requests;
+    private long hits;
+
+    /**
+     * Get the stored page with the given contents, storing a copy of them
+     * if it is the first one.
+     */
+    public Page intern(byte[] data, int offset, int length) {
+        Page probe = new Page(data, offset, length, hash(data, offset, length));
+
+        synchronized (pages) {
+            requests++;
+
+            WeakReference<Page> ref = pages.get(probe);
+            Page page = ref != null ? ref.get() : null;
+            if (page != null) {
+                hits++;
+                return page;
+            }
+
+            page = new Page(Arrays.copyOfRange(data, offset, offset + length), 0, length, probe.hash);
+            pages.put(page, new WeakReference<>(page));
+            return page;
+        }
+    }
+
+    /**
+     * @return How many distinct pages are stored.
+     */
+    public int size() {
+        synchronized (pages) {
+            return pages.size();
+        }
+    }
+
+    /**
+     * @return The bytes held by the stored pages.
+     */
+    public long bytes() {
+        long bytes = 0;
+        synchronized (pages) {
+            for (Page page : pages.keySet())
+                bytes += page.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return How many of the intern() calls found the page already stored.
+     */
+    public long getHits() {
+        synchronized (pages) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return How many times intern() has been called.
+     */
+    public long getRequests() {
+        synchronized (pages) {
+            return requests;
+        }
+    }
+
+    /**
+     * A fast 64 bits hash of the bytes, eight bytes at a time.
+     */
+    public static long hash(byte[] data, int offset, int length) {
+        final long m = 0x9e3779b97f4a7c15L;
+        long h = length * m;
+        int i = 0;
+
+        for (; i + 8 <= length; i += 8) {
+            int p = offset + i;
+            long k = (data[p] & 0xffL) | (data[p + 1] & 0xffL) << 8 |
+                    (data[p + 2] & 0xffL) << 16 | (data[p + 3] & 0xffL) << 24 |
+                    (data[p + 4] & 0xffL) << 32 | (data[p + 5] & 0xffL) << 40 |
+                    (data[p + 6] & 0xffL) << 48 | (data[p + 7] & 0xffL) << 56;
+            h = Long.rotateLeft(h ^ (k * m), 29) * m;
+        }
+        for (; i < length; i++)
+            h = (h ^ (data[offset + i] & 0xffL)) * m;
+
+        // final avalanche
+        h ^= h >>> 32;
+        h *= 0xd6e8feb86659fd93L;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -0,0 +1,307 @@
+package com.intchip;
+
+import com.intchip.PageStore.Page;
+import com.intchip.Uploader.Section;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable image of the flash and eeprom contents, as references to
+ * the shared pages of a PageStore.
+ *
+ * The flash is held in whole pages padded with 0xff, as avrdude writes
+ * them. The eeprom has no pages and holds only the given bytes, split at
+ * the same boundaries, so the other eeprom bytes are kept on the target.
+ */
+public class PagedImage {
+
+    /**
+     * A page of the image at its address.
+     */
+    public static final class PageRef {
+        /** STK500.MEM_FLASH or STK500.MEM_EEPROM. */
+        public final char memtype;
+        public final int address;
+        public final Page page;
+
+        PageRef(char memtype, int address, Page page) {
+            this.memtype = memtype;
+            this.address = address;
+            this.page = page;
+        }
+    }
+
+    private final PageStore store;
+    private final int pagesize;
+    /** Sorted by memtype (flash first) and address. */
+    private final PageRef[] refs;
+
+    private PagedImage(PageStore store, int pagesize, PageRef[] refs) {
+        this.store = store;
+        this.pagesize = pagesize;
+        this.refs = refs;
+    }
+
+    /**
+     * Build the image of the sections, e.g. those of Uploader.parseImage(),
+     * with the pages of the store.
+     *
+     * @param pagesize The flash page size, a page size larger than the
+     *                 target's one works too, e.g. DeviceProfile.MAX_PAGESIZE.
+     */
+    public static PagedImage build(PageStore store, List<Section> sections, int pagesize) {
+        // The flash pages, filled in the order of the sections
+        TreeMap<Integer, byte[]> flash = new TreeMap<>();
+        List<PageRef> refs = new ArrayList<>();
+
+        for (Section sect : sections) {
+            if (sect.memtype == STK500.MEM_EEPROM) {
+                for (int offset = 0; offset < sect.content.length; ) {
+                    int address = sect.address + offset;
+                    int n = Math.min(sect.content.length - offset, pagesize - address % pagesize);
+                    refs.add(new PageRef(STK500.MEM_EEPROM, address,
+                            store.intern(sect.content, offset, n)));
+                    offset += n;
+                }
+                continue;
+            }
+
+            for (int offset = 0; offset < sect.content.length; ) {
+                int address = sect.address + offset;
+                int base = address - address % pagesize;
+                int n = Math.min(sect.content.length - offset, base + pagesize - address);
+
+                byte[] page = flash.get(base);
+                if (page == null) {
+                    page = new byte[pagesize];
+                    Arrays.fill(page, (byte) 0xff);
+                    flash.put(base, page);
+                }
+                System.arraycopy(sect.content, offset, page, address - base, n);
+                offset += n;
+            }
+        }
+
+        List<PageRef> all = new ArrayList<>();
+        for (Map.Entry<Integer, byte[]> entry : flash.entrySet()) {
+            all.add(new PageRef(STK500.MEM_FLASH, entry.getKey(),
+                    store.intern(entry.getValue(), 0, pagesize)));
+        }
+
+        sortByAddress(refs);
+        all.addAll(refs);
+
+        return new PagedImage(store, pagesize, all.toArray(new PageRef[0]));
+    }
+
+    private static void sortByAddress(List<PageRef> refs) {
+        Collections.sort(refs, new Comparator<PageRef>() {
+            @Override
+            public int compare(PageRef a, PageRef b) {
+                return Integer.compare(a.address, b.address);
+            }
+        });
+    }
+
+    /**
+     * The order of the pages, flash first and then eeprom, by address.
+     */
+    private static long order(char memtype, int address) {
+        return (memtype == STK500.MEM_EEPROM ? 1L << 32 : 0) | (address & 0xffffffffL);
+    }
+
+    /**
+     * @return The index of the first page at or after the address.
+     */
+    private int lowerBound(char memtype, int address) {
+        long key = order(memtype, address);
+        int low = 0;
+        int high = refs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (order(refs[mid].memtype, refs[mid].address) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Make a copy of the image with some bytes replaced, e.g. the serial
+     * number and the calibration data of a device.
+     *
+     * Only the patched pages are copied, changed and stored, the other
+     * pages are shared with this image, and the references to the new
+     * pages are merged into a copy of the sorted ones, without sorting
+     * them again. The patches outside the
+     * image add new pages, padded with 0xff for flash.
+     *
+     * @param patches The bytes to write at each address, the eeprom is at
+     *                0x810000 as in the files of avr-gcc.
+     * @return The patched image.
+     */
+    public PagedImage patch(Map<Integer, byte[]> patches) {
+        // The patched pages, and which of their bytes are in the image
+        TreeMap<Long, byte[]> pages = new TreeMap<>();
+        TreeMap<Long, boolean[]> covered = new TreeMap<>();
+
+        for (Map.Entry<Integer, byte[]> patch : patches.entrySet()) {
+            char memtype = STK500.MEM_FLASH;
+            int start = patch.getKey();
+            if (start >= Uploader.EEPROM_OFFSET) {
+                memtype = STK500.MEM_EEPROM;
+                start -= Uploader.EEPROM_OFFSET;
+            }
+
+            byte[] data = patch.getValue();
+            for (int offset = 0; offset < data.length; ) {
+                int address = start + offset;
+                int base = address - address % pagesize;
+                int n = Math.min(data.length - offset, base + pagesize - address);
+
+                long key = order(memtype, base);
+                byte[] page = pages.get(key);
+                boolean[] mask = covered.get(key);
+                if (page == null) {
+                    page = new byte[pagesize];
+                    mask = new boolean[pagesize];
+                    Arrays.fill(page, (byte) 0xff);
+                    // flash pages are always written whole
+                    Arrays.fill(mask, memtype == STK500.MEM_FLASH);
+
+                    for (int i = lowerBound(memtype, base); i < refs.length &&
+                            refs[i].memtype == memtype && refs[i].address < base + pagesize; i++) {
+                        refs[i].page.copyTo(page, refs[i].address - base);
+                        Arrays.fill(mask, refs[i].address - base,
+                                refs[i].address - base + refs[i].page.length, true);
+                    }
+
+                    pages.put(key, page);
+                    covered.put(key, mask);
+                }
+
+                System.arraycopy(data, offset, page, address - base, n);
+                Arrays.fill(mask, address - base, address - base + n, true);
+                offset += n;
+            }
+        }
+
+        // The new pages of each patched block, and the old ones they replace
+        PageRef[][] blocks = new PageRef[pages.size()][];
+        int[] from = new int[pages.size()];
+        int[] to = new int[pages.size()];
+        int size = refs.length;
+        int b = 0;
+
+        for (Map.Entry<Long, byte[]> entry : pages.entrySet()) {
+            char memtype = entry.getKey() >>> 32 != 0 ? STK500.MEM_EEPROM : STK500.MEM_FLASH;
+            int base = (int) (long) entry.getKey();
+            byte[] page = entry.getValue();
+            boolean[] mask = covered.get(entry.getKey());
+
+            // One page for each run of the bytes in the image
+            List<PageRef> block = new ArrayList<>(1);
+            for (int i = 0; i < pagesize; ) {
+                if (!mask[i]) {
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < pagesize && mask[end])
+                    end++;
+                block.add(new PageRef(memtype, base + i, store.intern(page, i, end - i)));
+                i = end;
+            }
+
+            blocks[b] = block.toArray(new PageRef[0]);
+            from[b] = lowerBound(memtype, base);
+            to[b] = lowerBound(memtype, base + pagesize);
+            size += blocks[b].length - (to[b] - from[b]);
+            b++;
+        }
+
+        // Merge them into a copy of the sorted references, the blocks are
+        // in the same order
+        PageRef[] patched = new PageRef[size];
+        int src = 0;
+        int dst = 0;
+        for (b = 0; b < blocks.length; b++) {
+            System.arraycopy(refs, src, patched, dst, from[b] - src);
+            dst += from[b] - src;
+            System.arraycopy(blocks[b], 0, patched, dst, blocks[b].length);
+            dst += blocks[b].length;
+            src = to[b];
+        }
+        System.arraycopy(refs, src, patched, dst, refs.length - src);
+
+        return new PagedImage(store, pagesize, patched);
+    }
+
+    /**
+     * @return The store of the pages.
+     */
+    public PageStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The flash page size of the image.
+     */
+    public int getPagesize() {
+        return pagesize;
+    }
+
+    /**
+     * @return How many pages the image has.
+     */
+    public int size() {
+        return refs.length;
+    }
+
+    public PageRef get(int index) {
+        return refs[index];
+    }
+
+    /**
+     * @return The bytes of the image.
+     */
+    public int length() {
+        int length = 0;
+        for (PageRef ref : refs)
+            length += ref.page.length;
+        return length;
+    }
+
+    /**
+     * @return The image as sections, one for each run of contiguous pages.
+     */
+    public List<Section> toSections() {
+        List<Section> sections = new ArrayList<>();
+
+        for (int i = 0; i < refs.length; ) {
+            int end = i + 1;
+            int length = refs[i].page.length;
+            while (end < refs.length && refs[end].memtype == refs[i].memtype &&
+                    refs[end].address == refs[i].address + length) {
+                length += refs[end].page.length;
+                end++;
+            }
+
+            byte[] content = new byte[length];
+            for (int j = i, offset = 0; j < end; offset += refs[j].page.length, j++)
+                refs[j].page.copyTo(content, offset);
+
+            sections.add(new Section(refs[i].address, content, refs[i].memtype));
+            i = end;
+        }
+
+        return sections;
+    }
+}
@@ -0,0 +1,155 @@
+package com.intchip;
+
+import com.intchip.devices.RxTxDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Find the serial ports with a responsive bootloader behind them.
+ *
+ * All the ports are probed at the same time with short timeouts, so the
+ * whole discovery takes about one reset cycle, instead of a full open()
+ * with MAX_SYNC_ATTEMPTS for each port in turn.
+ */
+public class PortDiscovery {
+
+    static final int PROBE_SYNC_ATTEMPTS = 3;
+    static final int PROBE_RECV_TIMEOUT = 100;
+    static final int PROBE_DRAIN_TIMEOUT = 50;
+
+    /** The usb-serial adapters of the arduino boards. */
+    public static final String[] DEFAULT_PREFIXES = {"/dev/ttyUSB", "/dev/ttyACM"};
+
+    /**
+     * A responsive board found by the discovery.
+     */
+    public static class Board {
+        public final String port;
+        public final byte[] signature;
+        public final String signOn;
+        public final long elapsedMillis;
+
+        Board(String port, byte[] signature, String signOn, long elapsedMillis) {
+            this.port = port;
+            this.signature = signature;
+            this.signOn = signOn;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: signature=%02x%02x%02x sign-on=\"%s\" (%d ms)",
+                    port, signature[0], signature[1], signature[2], signOn, elapsedMillis);
+        }
+    }
+
+    private PortDiscovery() {
+    }
+
+    /**
+     * Probe all the /dev/ttyUSB* and /dev/ttyACM* ports known by RxTx.
+     *
+     * @param baud The baud rate of the bootloader.
+     * @return The responsive boards, sorted by port name.
+     */
+    public static List<Board> discover(long baud) throws InterruptedException {
+        List<SerialDeviceInterface> devices = new ArrayList<>();
+
+        for (String port : RxTxDevice.listPorts(DEFAULT_PREFIXES)) {
+            RxTxDevice device = new RxTxDevice(port);
+            device.setTimeouts(PROBE_RECV_TIMEOUT, PROBE_DRAIN_TIMEOUT);
+            devices.add(device);
+        }
+
+        return probe(devices, baud, PROBE_SYNC_ATTEMPTS);
+    }
+
+    /**
+     * Probe the devices concurrently. Each device is opened (which resets
+     * the board), synced, asked for its sign on message and signature,
+     * and closed again.
+     *
+     * @param devices The devices to probe, better with short timeouts.
+     * @param baud The baud rate of the bootloader.
+     * @param syncAttempts How many times to try to get in sync.
+     * @return The responsive boards, in the order of devices.
+     */
+    public static List<Board> probe(List<? extends SerialDeviceInterface> devices,
+                                    final long baud, final int syncAttempts)
+            throws InterruptedException {
+        List<Board> boards = new ArrayList<>();
+        if (devices.isEmpty())
+            return boards;
+
+        ExecutorService executor = Executors.newFixedThreadPool(devices.size());
+        try {
+            List<Future<Board>> results = new ArrayList<>();
+            for (final SerialDeviceInterface device : devices) {
+                results.add(executor.submit(new Callable<Board>() {
+                    @Override
+                    public Board call() {
+                        return probe(device, baud, syncAttempts);
+                    }
+                }));
+            }
+
+            for (Future<Board> result : results) {
+                try {
+                    Board board = result.get();
+                    if (board != null)
+                        boards.add(board);
+                } catch (ExecutionException e) {
+                    System.err.println("PortDiscovery: probe failed: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return boards;
+    }
+
+    /**
+     * Probe a single device.
+     *
+     * @return The board, or null if nothing answers.
+     */
+    public static Board probe(SerialDeviceInterface device, long baud, int syncAttempts) {
+        long start = System.currentTimeMillis();
+
+        STK500 protocol = new STK500(device);
+        protocol.setSyncAttempts(syncAttempts);
+        // Most ports have no board, only report the ones found
+        protocol.setQuiet(true);
+
+        if (protocol.open(baud) != 0) {
+            protocol.close();
+            return null;
+        }
+
+        try {
+            String signOn = protocol.getSignOn();
+            byte[] signature = new byte[3];
+            if (signOn == null || protocol.readSignature(signature) != 0)
+                return null;
+
+            return new Board(device.getName(), signature, signOn,
+                    System.currentTimeMillis() - start);
+        } finally {
+            protocol.close();
+        }
+    }
+
+    public static void main(String[] arguments) throws InterruptedException {
+        long baud = arguments.length > 0 ? Long.parseLong(arguments[0]) : 115200;
+
+        for (Board board : discover(baud))
+            System.out.println(board);
+    }
+}
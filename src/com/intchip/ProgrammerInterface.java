@@ -0,0 +1,71 @@
+package com.intchip;
+
+/**
+ * Any class implementing this interface can be used by the Uploader to
+ * program the target device, e.g. STK500 for optiboot and STK500v2 for
+ * the wiring bootloader.
+ *
+ * The addresses are in byte for both memories, the implementation
+ * converts them as its protocol needs. The memory types are
+ * STK500.MEM_FLASH and STK500.MEM_EEPROM.
+ */
+public interface ProgrammerInterface {
+    /**
+     * @return The serial device used by this programmer.
+     */
+    SerialDeviceInterface getSerial();
+
+    /**
+     * Open the serial device with the given baud rate, and get in touch
+     * with the target device.
+     * @return 0 if success, otherwise -1.
+     */
+    int open(long baud);
+
+    /**
+     * Close the serial device.
+     */
+    void close();
+
+    /**
+     * Read the 3 signature bytes of the target device.
+     * @return 0 if success, otherwise -1.
+     */
+    int readSignature(byte[] sig);
+
+    /**
+     * Make the target device enter the programming mode.
+     * @return 0 if success, otherwise -1.
+     */
+    int programEnable();
+
+    /**
+     * Leave the programming mode. Note some bootloaders start the
+     * application then, so this must be the last command.
+     * @return 0 if success, otherwise -1.
+     */
+    int disable();
+
+    /**
+     * Erase the whole flash of the target device, if the bootloader
+     * supports it. Uploader.setSkipBlankPages() relies on this to really
+     * erase the whole chip at once, an implementation which can't do so
+     * must return -1.
+     * @return 0 if success, otherwise -1.
+     */
+    int chipErase();
+
+    /**
+     * Write length bytes of mem from offset to the memory of the target,
+     * at the byte address addr, in blocks of pagesize bytes.
+     * @return The length written if success, otherwise a negative value.
+     */
+    int pagedWrite(char memtype, byte[] mem, int pagesize, int addr, int offset, int length);
+
+    /**
+     * Read length bytes from the memory of the target at the byte address
+     * addr into mem from offset, in blocks of pagesize bytes.
+     * @return The length read if success, otherwise a negative value.
+     */
+    int pagedLoad(char memtype, byte[] mem, int pagesize, int addr, int offset, int length);
+}
@@ -9,17 +9,18 @@ package com.intchip;
  * This code is referenced to the opensource project 'avrdude', please
  * see http://www.nongnu.org/avrdude for details.
  */
-public class STK500 {
+public class STK500
+        implements ProgrammerInterface {
 
     static final int MAX_SYNC_ATTEMPTS  = 10;
 
     /**** STK Response constants ****/
-    static final byte Resp_STK_OK       = 0x10;
-    static final byte Resp_STK_FAILED   = 0x11;
-    static final byte Resp_STK_UNKNOWN  = 0x12;
-    static final byte Resp_STK_NODEVICE  = 0x13;
-    static final byte Resp_STK_INSYNC   = 0x14;
-    static final byte Resp_STK_NOSYNC   = 0x15;
+    public static final byte Resp_STK_OK       = 0x10;
+    public static final byte Resp_STK_FAILED   = 0x11;
+    public static final byte Resp_STK_UNKNOWN  = 0x12;
+    public static final byte Resp_STK_NODEVICE  = 0x13;
+    public static final byte Resp_STK_INSYNC   = 0x14;
+    public static final byte Resp_STK_NOSYNC   = 0x15;
 
     /**** STK Special constants ****/
     static final byte Sync_CRC_EOP      = 0x20;
@@ -39,18 +40,70 @@ public class STK500 {
     static final byte Cmnd_STK_CHIP_ERASE       = 0x52;
     static final byte Cmnd_STK_CHECK_AUTOINC    = 0x53;
     static final byte Cmnd_STK_LOAD_ADDRESS     = 0x55;
+    static final byte Cmnd_STK_UNIVERSAL        = 0x56;
 
     static final byte Cmnd_STK_PROG_FLASH       = 0x60;
     static final byte Cmnd_STK_PROG_PAGE        = 0x64;
 
     static final byte Cmnd_STK_READ_FLASH       = 0x70;
     static final byte Cmnd_STK_READ_PAGE        = 0x74;
+    static final byte Cmnd_STK_READ_SIGN        = 0x75;
+
+    /**** STK memory types ****/
+    public static final char MEM_FLASH          = 'F';
+    public static final char MEM_EEPROM         = 'E';
+
+    /**** AVR serial programming instructions ****/
+    static final byte AVR_OP_LOAD_EXT_ADDR      = 0x4d;
 
 
     private SerialDeviceInterface serial;
+    private int syncAttempts;
+    private boolean quiet;
+    private boolean chipEraseSupported;
+
+    /** The extended address byte (word address bits 16-23) of the target. */
+    private int extAddress;
+    /** The buffer for the paged commands, kept between the calls. */
+    private byte[] pageBuf = new byte[0];
 
     public STK500(SerialDeviceInterface serial) {
         this.serial = serial;
+        this.syncAttempts = MAX_SYNC_ATTEMPTS;
+    }
+
+    /**
+     * @return The serial device used by this protocol.
+     */
+    @Override
+    public SerialDeviceInterface getSerial() {
+        return serial;
+    }
+
+    /**
+     * Set how many times getsync() tries before giving up,
+     * the default is MAX_SYNC_ATTEMPTS.
+     */
+    public void setSyncAttempts(int attempts) {
+        this.syncAttempts = attempts;
+    }
+
+    /**
+     * Whether the target really erases the whole flash on
+     * Cmnd_STK_CHIP_ERASE. The default is false, since optiboot only
+     * acknowledges the command, and then chipErase() fails without
+     * sending anything. Only set it for programmers known to erase.
+     */
+    public void setChipEraseSupported(boolean supported) {
+        this.chipEraseSupported = supported;
+    }
+
+    /**
+     * Whether to hide the messages of getsync() when the target does not
+     * answer, e.g. when probing ports which may have no board.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
     }
 
     /**
@@ -58,6 +111,7 @@ public class STK500 {
      * @param baud  The speed to communicate with target side.
      * @return  0 if success, otherwise -1.
      */
+    @Override
     public int open(long baud) {
         if (serial.open() != 0 ||
                 serial.setspeed(baud) != 0)
@@ -66,6 +120,9 @@ public class STK500 {
         // drain any extraneous input
         serial.drain();
 
+        // cleared by the reset of the target
+        extAddress = 0;
+
         if (getsync() < 0)
             return -1;
 
@@ -75,6 +132,7 @@ public class STK500 {
     /**
      * Close the serial device.
      */
+    @Override
     public void close() {
         serial.close();
     }
@@ -101,19 +159,20 @@ public class STK500 {
         serial.drain();
 
         int attempt;
-        for (attempt = 0; attempt < MAX_SYNC_ATTEMPTS; attempt++) {
+        for (attempt = 0; attempt < syncAttempts; attempt++) {
             serial.send(buf, 2);
             serial.recv(resp, 1);
 
             if (resp[0] == Resp_STK_INSYNC)
                 break;
-            System.err.println(
-                    String.format("%s: STK500.getsync() attempt %d of %d: not in sync: resp=0x%02x",
-                            serial.getName(), attempt + 1, MAX_SYNC_ATTEMPTS, resp[0])
-            );
+            if (!quiet)
+                System.err.println(
+                        String.format("%s: STK500.getsync() attempt %d of %d: not in sync: resp=0x%02x",
+                                serial.getName(), attempt + 1, syncAttempts, resp[0])
+                );
         }
 
-        if (attempt == MAX_SYNC_ATTEMPTS) {
+        if (attempt == syncAttempts) {
             serial.drain();
             return -1;
         }
@@ -122,20 +181,171 @@ public class STK500 {
             return -1;
 
         if (resp[0] != Resp_STK_OK) {
+            if (!quiet)
+                System.err.println(
+                    String.format("%s: STK500.getsync(): can't communicate with device: resp=0x%02x",
+                        serial.getName(), resp[0])
+                );
+            return -1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Get the sign on message of the programmer, e.g. "AVR STK".
+     * Note optiboot answers an empty message.
+     *
+     * @return The message, or null if failed.
+     */
+    public String getSignOn() {
+        byte[] buf = new byte[2];
+
+        buf[0] = Cmnd_STK_GET_SIGN_ON;
+        buf[1] = Sync_CRC_EOP;
+
+        serial.send(buf, 2);
+        if (serial.recv(buf, 1) < 1 || buf[0] != Resp_STK_INSYNC) {
             System.err.println(
-                String.format("%s: STK500.getsync(): can't communicate with device: resp=0x%02x",
-                    serial.getName(), resp[0])
+                    String.format("%s: STK500.getSignOn(): protocol error, expect=0x%02x, resp=0x%02x",
+                            serial.getName(), Resp_STK_INSYNC, buf[0])
             );
+            return null;
+        }
+
+        StringBuilder signOn = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            if (serial.recv(buf, 1) < 1)
+                return null;
+            if (buf[0] == Resp_STK_OK)
+                return signOn.toString();
+            signOn.append((char) buf[0]);
+        }
+
+        System.err.println(serial.getName() + ": STK500.getSignOn(): sign on message too long");
+        return null;
+    }
+
+    /**
+     * Read the 3 signature bytes of the target device.
+     *
+     * @param sig The buffer to hold the signature, at least 3 bytes.
+     * @return 0 if success, otherwise -1.
+     */
+    @Override
+    public int readSignature(byte[] sig) {
+        byte[] buf = new byte[5];
+
+        for (int tries = 0; ; tries++) {
+            buf[0] = Cmnd_STK_READ_SIGN;
+            buf[1] = Sync_CRC_EOP;
+
+            serial.send(buf, 2);
+
+            if (serial.recv(buf, 1) < 1)
+                return -1;
+
+            if (buf[0] == Resp_STK_NOSYNC) {
+                if (tries > 33) {
+                    System.err.println(
+                            serial.getName() + ": STK500.readSignature(): can't get into sync"
+                    );
+                    return -1;
+                }
+                if (getsync() < 0)
+                    return -1;
+                continue;
+            }
+
+            if (buf[0] != Resp_STK_INSYNC) {
+                System.err.println(
+                        String.format("%s: STK500.readSignature(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_INSYNC, buf[0])
+                );
+                return -1;
+            }
+
+            if (serial.recv(buf, 4) < 4)
+                return -1;
+
+            if (buf[3] != Resp_STK_OK) {
+                System.err.println(
+                        String.format("%s: STK500.readSignature(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_OK, buf[3])
+                );
+                return -1;
+            }
+
+            System.arraycopy(buf, 0, sig, 0, 3);
+            return 0;
+        }
+    }
+
+    /**
+     * Erase the whole flash (and maybe the eeprom) of the target device.
+     * Note optiboot acknowledges the command without erasing anything,
+     * it erases each page when the page is written instead, so this
+     * fails unless setChipEraseSupported(true) is called.
+     *
+     * @return 0 if success, otherwise -1.
+     */
+    @Override
+    public int chipErase() {
+        if (!chipEraseSupported) {
+            System.err.println(serial.getName() + ": STK500.chipErase(): not supported by the bootloader");
             return -1;
         }
 
-        return 0;
+        byte[] buf = new byte[2];
+
+        for (int tries = 0; ; tries++) {
+            buf[0] = Cmnd_STK_CHIP_ERASE;
+            buf[1] = Sync_CRC_EOP;
+
+            serial.send(buf, 2);
+            if (serial.recv(buf, 1) < 1)
+                return -1;
+
+            if (buf[0] == Resp_STK_NOSYNC) {
+                if (tries > 33) {
+                    System.err.println(
+                            serial.getName() + ": STK500.chipErase(): can't get into sync"
+                    );
+                    return -1;
+                }
+                if (getsync() < 0)
+                    return -1;
+                continue;
+            }
+
+            if (buf[0] != Resp_STK_INSYNC) {
+                System.err.println(
+                        String.format("%s: STK500.chipErase(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_INSYNC, buf[0])
+                );
+                return -1;
+            }
+
+            if (serial.recv(buf, 1) < 1)
+                return -1;
+
+            if (buf[0] != Resp_STK_OK) {
+                System.err.println(
+                        String.format("%s: STK500.chipErase(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_OK, buf[0])
+                );
+                return -1;
+            }
+
+            return 0;
+        }
     }
 
     /**
      * Leaving the flash programming mode.
      * @return 0 if success, otherwise -1.
      */
+    @Override
     public int disable() {
         /*
             No need for optiboot,
@@ -149,6 +359,7 @@ public class STK500 {
      *
      * @return 0 if success, otherwise -1.
      */
+    @Override
     public int programEnable() {
         byte[] buf = new byte[2];
 
@@ -209,14 +420,79 @@ public class STK500 {
         return -1;
     }
 
+    /**
+     * Set the extended address byte of the target, i.e. the bits 16-23
+     * of the word address, needed beyond 128KB of flash (e.g. ATmega2560).
+     * This uses the universal command, like avrdude and optiboot do.
+     *
+     * @param ext The extended address byte.
+     * @return 0 if success, otherwise -1.
+     */
+    public int loadExtAddr(int ext) {
+        byte[] buf = new byte[6];
+
+        for (int tries = 0; ; tries++) {
+            buf[0] = Cmnd_STK_UNIVERSAL;
+            buf[1] = AVR_OP_LOAD_EXT_ADDR;
+            buf[2] = 0;
+            buf[3] = (byte)(ext & 0xff);
+            buf[4] = 0;
+            buf[5] = Sync_CRC_EOP;
+
+            serial.send(buf, 6);
+
+            if (serial.recv(buf, 1) < 0)
+                return -1;
+
+            if (buf[0] == Resp_STK_NOSYNC) {
+                if (tries > 33) {
+                    System.err.println(
+                            serial.getName() + ": STK500.loadExtAddr(): can't get into sync"
+                    );
+                    return -1;
+                }
+                if (getsync() < 0)
+                    return -1;
+                continue;
+            }
+
+            if (buf[0] != Resp_STK_INSYNC) {
+                System.err.println(
+                        String.format("%s: STK500.loadExtAddr(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_INSYNC, buf[0])
+                );
+                return -1;
+            }
+
+            // The answer of the universal command, then OK
+            if (serial.recv(buf, 2) < 2)
+                return -1;
+            if (buf[1] != Resp_STK_OK) {
+                System.err.println(
+                        String.format("%s: STK500.loadExtAddr(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), Resp_STK_OK, buf[1])
+                );
+                return -1;
+            }
+
+            extAddress = ext;
+            return 0;
+        }
+    }
+
     /**
      * Telling the target device the base address will be programming.
-     * @param addr The base address of flash, in byte.
+     * The extended address is set first when it changes.
+     * @param addr The base address of flash, in word.
      * @return 0 if success, otherwise -1.
      */
     public int loadaddr(long addr) {
         byte[] buf = new byte[4];
 
+        int ext = (int)((addr >> 16) & 0xff);
+        if (ext != extAddress && loadExtAddr(ext) < 0)
+            return -1;
+
         for (int tries = 0; ; tries++) {
             buf[0] = Cmnd_STK_LOAD_ADDRESS;
             buf[1] = (byte)(addr & 0xff);
@@ -272,19 +548,46 @@ public class STK500 {
     }
 
     /**
-     * Write a serial block date to the flash of target device, with the
-     * given base address and length, both in byte.
+     * Call pagedWrite(MEM_FLASH, mem, pagesize, addr, offset, length).
+     */
+    public int pagedWrite(byte[] mem, int pagesize, int addr, int offset, int length) {
+        return pagedWrite(MEM_FLASH, mem, pagesize, addr, offset, length);
+    }
+
+    /**
+     * Write a serial block date to the flash or eeprom of target device,
+     * with the given base address and length, both in byte.
      *
-     * @param mem The data to be write on the flash.
-     * @param pagesize  The page size of target device's flash.
+     * @param memtype MEM_FLASH or MEM_EEPROM.
+     * @param mem The data to be write on the memory.
+     * @param pagesize  The page size of target device's flash, or the
+     *                  block size for eeprom.
      * @param addr  The base address to write to.
      * @param offset The start offset of mem to write.
      * @param length  The length to write.
      * @return 0 if success, -3 if try too many times, -4 if not insync,
      *          -5 if receive an unknown response, otherwise -1.
      */
-    public int pagedWrite(byte[] mem, int pagesize, int addr, int offset, int length) {
-        byte[] buf = new byte[pagesize + 16];
+    @Override
+    public int pagedWrite(char memtype, byte[] mem, int pagesize, int addr, int offset, int length) {
+        // The eeprom is addressed in words too, so an odd start is written
+        // with the byte before it, read back from the target.
+        if (memtype == MEM_EEPROM && (addr & 1) != 0 && length > 0) {
+            byte[] pair = new byte[2];
+            int ret = pagedLoad(MEM_EEPROM, pair, 2, addr - 1, 0, 2);
+            if (ret < 0)
+                return ret;
+
+            pair[1] = mem[offset];
+            ret = pagedWrite(MEM_EEPROM, pair, 2, addr - 1, 0, 2);
+            if (ret < 0 || length == 1)
+                return ret < 0 ? ret : length;
+
+            ret = pagedWrite(MEM_EEPROM, mem, pagesize, addr + 1, offset + 1, length - 1);
+            return ret < 0 ? ret : length;
+        }
+
+        byte[] buf = pageBuffer(pagesize + 16);
 
         int n = addr + length;
         int blocksize = pagesize;
@@ -296,13 +599,15 @@ public class STK500 {
                 blocksize = pagesize;
 
             for (int tries = 0; ; tries++) {
-                loadaddr(addr / 2);
+                // optiboot doubles the address of both memories
+                if (loadaddr(addr / 2) < 0)
+                    return -1;
 
                 int i = 0;
                 buf[i++] = Cmnd_STK_PROG_PAGE;
                 buf[i++] = (byte)((blocksize >> 8) & 0xff);
                 buf[i++] = (byte)(blocksize & 0xff);
-                buf[i++] = (byte)('F');
+                buf[i++] = (byte)(memtype);
 
                 System.arraycopy(mem, offset, buf, i, blocksize);
 
@@ -364,20 +669,40 @@ public class STK500 {
         return pagedLoad(mem, pagesize, addr, 0, mem.length);
     }
 
+    /**
+     * Call pagedLoad(MEM_FLASH, mem, pagesize, addr, offset, length).
+     */
+    public int pagedLoad(byte[] mem, int pagesize, int addr, int offset, int length) {
+        return pagedLoad(MEM_FLASH, mem, pagesize, addr, offset, length);
+    }
+
      /**
-     * Read a serial block date from the flash of target device,
+     * Read a serial block date from the flash or eeprom of target device,
      * and save the data in the given buffer.
      *
+     * @param memtype MEM_FLASH or MEM_EEPROM.
      * @param mem The buffer to hold the received data, not null.
-     * @param pagesize  The page size of target device's flash.
+     * @param pagesize  The block size to read with one command.
      * @param addr  The base address to read from.
      * @param offset The start offset of mem to store the received data.
      * @param length  The length to read.
      * @return 0 if success, -3 if try too many times, -4 if not insync,
      *          -5 if receive an unknown response, otherwise -1.
      */
-    public int pagedLoad(byte[] mem, int pagesize, int addr, int offset, int length) {
-        byte[] buf = new byte[pagesize > 16 ? pagesize : 16];
+    @Override
+    public int pagedLoad(char memtype, byte[] mem, int pagesize, int addr, int offset, int length) {
+        // The eeprom is addressed in words too, read an odd start from the byte before
+        if (memtype == MEM_EEPROM && (addr & 1) != 0 && length > 0) {
+            byte[] tmp = new byte[length + 1];
+            int ret = pagedLoad(MEM_EEPROM, tmp, pagesize, addr - 1, 0, length + 1);
+            if (ret < 0)
+                return ret;
+
+            System.arraycopy(tmp, 1, mem, offset, length);
+            return length;
+        }
+
+        byte[] buf = pageBuffer(pagesize > 16 ? pagesize : 16);
 
         int n = addr + length;
         int blocksize = pagesize;
@@ -389,12 +714,14 @@ public class STK500 {
                 blocksize = pagesize;
 
             for (int tries = 0; ; tries++) {
-                loadaddr(addr / 2);
+                // optiboot doubles the address of both memories
+                if (loadaddr(addr / 2) < 0)
+                    return -1;
 
                 buf[0] = Cmnd_STK_READ_PAGE;
                 buf[1] = (byte)((blocksize >> 8) & 0xff);
                 buf[2] = (byte)(blocksize & 0xff);
-                buf[3] = (byte)('F');
+                buf[3] = (byte)(memtype);
                 buf[4] = Sync_CRC_EOP;
 
                 serial.send(buf, 5);
@@ -451,4 +778,12 @@ public class STK500 {
         return length;
     }
 
+    /**
+     * Get the buffer for the paged commands, at least size bytes.
+     */
+    private byte[] pageBuffer(int size) {
+        if (pageBuf.length < size)
+            pageBuf = new byte[size];
+        return pageBuf;
+    }
 }
@@ -0,0 +1,508 @@
+package com.intchip;
+
+import java.util.Arrays;
+
+/**
+ * A simple implementation of the STK500v2 protocol, as spoken by the
+ * wiring bootloader of the Arduino Mega 2560 (see AVR068 and avrdude).
+ *
+ * Each command and answer is a framed message:
+ * <pre>
+ *   MESSAGE_START SEQUENCE SIZE_H SIZE_L TOKEN body... CHECKSUM
+ * </pre>
+ * where the checksum is the xor of all the previous bytes, and the answer
+ * repeats the sequence number of the command. The bootloader increments
+ * the address after each block, so the address is only loaded when a
+ * transfer does not continue the previous one.
+ */
+public class STK500v2
+        implements ProgrammerInterface {
+
+    static final int MAX_SYNC_ATTEMPTS  = 10;
+    static final int MAX_TRIES          = 10;
+    /** The largest body of a message, a 256 bytes block and its header. */
+    static final int MAX_BODY_SIZE      = 275;
+
+    /**** STK500v2 framing constants ****/
+    static final byte MESSAGE_START     = 0x1b;
+    static final byte TOKEN             = 0x0e;
+
+    /**** STK500v2 command constants ****/
+    static final byte CMD_SIGN_ON               = 0x01;
+    static final byte CMD_LOAD_ADDRESS          = 0x06;
+    static final byte CMD_ENTER_PROGMODE_ISP    = 0x10;
+    static final byte CMD_LEAVE_PROGMODE_ISP    = 0x11;
+    static final byte CMD_CHIP_ERASE_ISP        = 0x12;
+    static final byte CMD_PROGRAM_FLASH_ISP     = 0x13;
+    static final byte CMD_READ_FLASH_ISP        = 0x14;
+    static final byte CMD_PROGRAM_EEPROM_ISP    = 0x15;
+    static final byte CMD_READ_EEPROM_ISP       = 0x16;
+    static final byte CMD_READ_SIGNATURE_ISP    = 0x1b;
+
+    /**** STK500v2 status constants ****/
+    static final byte STATUS_CMD_OK             = 0x00;
+    static final byte STATUS_CKSUM_ERROR        = (byte) 0xc1;
+    static final byte ANSWER_CKSUM_ERROR        = (byte) 0xb0;
+
+    /** Set in the loaded address when the extended address byte is needed. */
+    static final int LOAD_EXT_ADDR_BIT          = 0x80000000;
+
+    /** recv() got the answer of an earlier command. */
+    private static final int OUT_OF_SEQUENCE    = -2;
+
+    private SerialDeviceInterface serial;
+    private int syncAttempts;
+
+    private byte sequence;
+    /** The command message, the body starts at msg[5]. */
+    private final byte[] msg = new byte[MAX_BODY_SIZE + 6];
+    private final byte[] head = new byte[4];
+    /** The body of the last answer, and its checksum. */
+    private final byte[] answer = new byte[MAX_BODY_SIZE + 1];
+    /** The address the target will use next, -1 if unknown. */
+    private long nextAddress;
+    /**
+     * The byte address of the flash page the bootloader erases on the next
+     * PROGRAM_FLASH, -1 until CMD_CHIP_ERASE_ISP rewinds it.
+     */
+    private int eraseAddress;
+    /** A page of 0xff, written over the gaps of the image. */
+    private byte[] blank;
+
+    public STK500v2(SerialDeviceInterface serial) {
+        this.serial = serial;
+        this.syncAttempts = MAX_SYNC_ATTEMPTS;
+    }
+
+    @Override
+    public SerialDeviceInterface getSerial() {
+        return serial;
+    }
+
+    /**
+     * Set how many times the sign on is tried before giving up,
+     * the default is MAX_SYNC_ATTEMPTS.
+     */
+    public void setSyncAttempts(int attempts) {
+        this.syncAttempts = attempts;
+    }
+
+    @Override
+    public int open(long baud) {
+        if (serial.open() != 0 ||
+                serial.setspeed(baud) != 0)
+            return -1;
+
+        // drain any extraneous input
+        serial.drain();
+
+        nextAddress = -1;
+        eraseAddress = -1;
+
+        for (int attempt = 0; attempt < syncAttempts; attempt++) {
+            if (getSignOn() != null)
+                return 0;
+            serial.drain();
+        }
+
+        System.err.println(serial.getName() + ": STK500v2.open(): can't get into sync");
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        serial.close();
+    }
+
+    /**
+     * Get the sign on message of the programmer, e.g. "AVRISP_2".
+     *
+     * @return The message, or null if failed.
+     */
+    public String getSignOn() {
+        msg[5] = CMD_SIGN_ON;
+
+        int n = command(1, 1);
+        if (n < 3)
+            return null;
+
+        return new String(answer, 3, Math.min(answer[2] & 0xff, n - 3));
+    }
+
+    @Override
+    public int readSignature(byte[] sig) {
+        for (int i = 0; i < 3; i++) {
+            msg[5] = CMD_READ_SIGNATURE_ISP;
+            msg[6] = 4;         // the answer is the 4th byte of the spi command
+            msg[7] = 0x30;      // Read Signature Byte
+            msg[8] = 0;
+            msg[9] = (byte) i;
+            msg[10] = 0;
+
+            if (command(6, MAX_TRIES) < 3)
+                return -1;
+            sig[i] = answer[2];
+        }
+
+        return 0;
+    }
+
+    @Override
+    public int programEnable() {
+        msg[5] = CMD_ENTER_PROGMODE_ISP;
+        msg[6] = (byte) 200;    // timeout
+        msg[7] = 100;           // stabDelay
+        msg[8] = 25;            // cmdexeDelay
+        msg[9] = 32;            // synchLoops
+        msg[10] = 0;            // byteDelay
+        msg[11] = 0x53;         // pollValue
+        msg[12] = 3;            // pollIndex
+        msg[13] = (byte) 0xac;  // Programming Enable
+        msg[14] = 0x53;
+        msg[15] = 0;
+        msg[16] = 0;
+
+        return command(12, MAX_TRIES) < 0 ? -1 : 0;
+    }
+
+    /**
+     * Leave the programming mode. Note the wiring bootloader starts the
+     * application right after answering.
+     */
+    @Override
+    public int disable() {
+        msg[5] = CMD_LEAVE_PROGMODE_ISP;
+        msg[6] = 1;             // preDelay
+        msg[7] = 1;             // postDelay
+
+        return command(3, MAX_TRIES) < 0 ? -1 : 0;
+    }
+
+    /**
+     * Not supported: CMD_CHIP_ERASE_ISP of the wiring bootloader only
+     * rewinds its erase pointer, and then each PROGRAM_FLASH erases the
+     * next page in turn. The flash is not erased, pagedWrite() sends it
+     * only to rewind the pointer.
+     * @return -1.
+     */
+    @Override
+    public int chipErase() {
+        System.err.println(serial.getName() + ": STK500v2.chipErase(): not supported by the bootloader");
+        return -1;
+    }
+
+    /**
+     * Rewind the erase pointer of the bootloader to the first page.
+     * @return 0 if success, otherwise -1.
+     */
+    private int rewindErase() {
+        msg[5] = CMD_CHIP_ERASE_ISP;
+        msg[6] = 55;            // eraseDelay
+        msg[7] = 0;             // pollMethod
+        msg[8] = (byte) 0xac;   // Chip Erase
+        msg[9] = (byte) 0x80;
+        msg[10] = 0;
+        msg[11] = 0;
+
+        if (command(7, MAX_TRIES) < 0) {
+            System.err.println(serial.getName() + ": STK500v2.rewindErase(): failed");
+            return -1;
+        }
+
+        eraseAddress = 0;
+        return 0;
+    }
+
+    /**
+     * Bring the erase pointer of the bootloader to the page of addr, by
+     * writing 0xff pages over the gap, so the next PROGRAM_FLASH erases
+     * the page it writes. The pointer only moves forward, so the flash
+     * must be written in ascending order.
+     * @return 0 if success, otherwise -1.
+     */
+    private int seekErase(int addr, int pagesize) {
+        if (eraseAddress < 0 && rewindErase() < 0)
+            return -1;
+
+        int page = addr / pagesize * pagesize;
+        if (page < eraseAddress) {
+            System.err.println(
+                    String.format("%s: STK500v2.pagedWrite(): the page at 0x%05x is already written",
+                            serial.getName(), page)
+            );
+            return -1;
+        }
+
+        if (blank == null || blank.length != pagesize) {
+            blank = new byte[pagesize];
+            Arrays.fill(blank, (byte) 0xff);
+        }
+        while (eraseAddress < page) {
+            if (writeBlock(true, blank, eraseAddress, 0, pagesize) < 0)
+                return -1;
+            eraseAddress += pagesize;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Set the address of the next transfer, in word for flash and in byte
+     * for eeprom. Nothing is sent if the target already points there.
+     * @return 0 if success, otherwise -1.
+     */
+    public int loadaddr(long addr) {
+        if (addr == nextAddress)
+            return 0;
+
+        int value = (int) addr;
+        if (addr > 0xffff)
+            value |= LOAD_EXT_ADDR_BIT;
+
+        msg[5] = CMD_LOAD_ADDRESS;
+        msg[6] = (byte) (value >> 24);
+        msg[7] = (byte) (value >> 16);
+        msg[8] = (byte) (value >> 8);
+        msg[9] = (byte) value;
+
+        if (command(5, MAX_TRIES) < 0) {
+            nextAddress = -1;
+            return -1;
+        }
+
+        nextAddress = addr;
+        return 0;
+    }
+
+    /**
+     * Write a serial block date to the flash or eeprom of target device,
+     * with the given base address and length, both in byte.
+     *
+     * The wiring bootloader erases the flash pages in turn from the first
+     * one, whatever the loaded address, so the first flash write of the
+     * session rewinds its erase pointer, and the pages skipped by the image
+     * are written with 0xff. The flash pages must be written in ascending
+     * order, at most once per session.
+     *
+     * @param pagesize The block size, at most 256 bytes, the page size of
+     *                 the target for flash.
+     * @return The length written if success, otherwise -1.
+     */
+    @Override
+    public int pagedWrite(char memtype, byte[] mem, int pagesize, int addr, int offset, int length) {
+        boolean flash = memtype == STK500.MEM_FLASH;
+        int n = addr + length;
+
+        for (int blocksize; addr < n; addr += blocksize, offset += blocksize) {
+            blocksize = Math.min(pagesize, n - addr);
+
+            if (flash && seekErase(addr, pagesize) < 0)
+                return -1;
+            if (writeBlock(flash, mem, addr, offset, blocksize) < 0)
+                return -1;
+            // A retried block may have erased one more page, which is harmless
+            // since the pages ahead of the pointer are never written before.
+            if (flash)
+                eraseAddress += pagesize;
+        }
+
+        return length;
+    }
+
+    /**
+     * Write one block, at most 256 bytes.
+     * @return 0 if success, otherwise -1.
+     */
+    private int writeBlock(boolean flash, byte[] mem, int addr, int offset, int blocksize) {
+        int tries;
+        for (tries = 0; tries < MAX_TRIES; tries++) {
+            // Flash is addressed in words, eeprom in bytes
+            if (loadaddr(flash ? addr / 2 : addr) < 0)
+                return -1;
+
+            msg[5] = flash ? CMD_PROGRAM_FLASH_ISP : CMD_PROGRAM_EEPROM_ISP;
+            msg[6] = (byte) (blocksize >> 8);
+            msg[7] = (byte) blocksize;
+            msg[8] = (byte) 0xc1;                       // page mode, write the page
+            msg[9] = 10;                                // delay
+            msg[10] = (byte) (flash ? 0x40 : 0xc1);     // Load Page
+            msg[11] = (byte) (flash ? 0x4c : 0xc2);     // Write Page
+            msg[12] = (byte) (flash ? 0x20 : 0xa0);     // Read Memory
+            msg[13] = (byte) (flash ? 0x00 : 0xff);     // poll values
+            msg[14] = 0x00;
+            System.arraycopy(mem, offset, msg, 15, blocksize);
+
+            if (command(10 + blocksize, 1) >= 0)
+                break;
+
+            // The target may or may not have taken the block
+            nextAddress = -1;
+        }
+        if (tries == MAX_TRIES) {
+            System.err.println(
+                    String.format("%s: STK500v2.pagedWrite(): failed at 0x%05x", serial.getName(), addr)
+            );
+            return -1;
+        }
+
+        nextAddress += flash ? blocksize / 2 : blocksize;
+        return 0;
+    }
+
+    /**
+     * Read a serial block date from the flash or eeprom of target device,
+     * and save the data in the given buffer.
+     *
+     * @param pagesize The block size, at most 256 bytes.
+     * @return The length read if success, otherwise -1.
+     */
+    @Override
+    public int pagedLoad(char memtype, byte[] mem, int pagesize, int addr, int offset, int length) {
+        boolean flash = memtype == STK500.MEM_FLASH;
+        int n = addr + length;
+
+        for (int blocksize; addr < n; addr += blocksize, offset += blocksize) {
+            blocksize = Math.min(pagesize, n - addr);
+
+            int tries;
+            for (tries = 0; tries < MAX_TRIES; tries++) {
+                if (loadaddr(flash ? addr / 2 : addr) < 0)
+                    return -1;
+
+                msg[5] = flash ? CMD_READ_FLASH_ISP : CMD_READ_EEPROM_ISP;
+                msg[6] = (byte) (blocksize >> 8);
+                msg[7] = (byte) blocksize;
+                msg[8] = (byte) (flash ? 0x20 : 0xa0);      // Read Memory
+
+                // command, status, data, status
+                if (command(4, 1) == blocksize + 3)
+                    break;
+
+                nextAddress = -1;
+            }
+            if (tries == MAX_TRIES) {
+                System.err.println(
+                        String.format("%s: STK500v2.pagedLoad(): failed at 0x%05x", serial.getName(), addr)
+                );
+                return -1;
+            }
+
+            System.arraycopy(answer, 2, mem, offset, blocksize);
+            nextAddress += flash ? blocksize / 2 : blocksize;
+        }
+
+        return length;
+    }
+
+    /**
+     * Send the command in msg and receive its answer. The command is sent
+     * again if the answer is lost or damaged.
+     *
+     * @param size The length of the command body.
+     * @param tries How many times to send the command.
+     * @return The length of the answer body, -1 if failed.
+     */
+    private int command(int size, int tries) {
+        for (int i = 0; i < tries; i++) {
+            send(size);
+
+            // Skip the late answers of the commands sent before
+            int n;
+            int stale = 0;
+            while ((n = recv()) == OUT_OF_SEQUENCE && ++stale < MAX_TRIES)
+                ;
+
+            if (n < 0) {
+                serial.drain();
+                continue;
+            }
+
+            if (answer[0] == ANSWER_CKSUM_ERROR)
+                continue;
+
+            if (answer[0] != msg[5]) {
+                System.err.println(
+                        String.format("%s: STK500v2.command(): protocol error, expect=0x%02x, resp=0x%02x",
+                                serial.getName(), msg[5], answer[0])
+                );
+                continue;
+            }
+
+            if (n < 2 || answer[1] != STATUS_CMD_OK) {
+                System.err.println(
+                        String.format("%s: STK500v2.command(): command 0x%02x failed, status=0x%02x",
+                                serial.getName(), msg[5], n < 2 ? 0xff : answer[1])
+                );
+                return -1;
+            }
+
+            return n;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Frame and send the command body in msg, with the next sequence number.
+     */
+    private void send(int size) {
+        msg[0] = MESSAGE_START;
+        msg[1] = ++sequence;
+        msg[2] = (byte) (size >> 8);
+        msg[3] = (byte) size;
+        msg[4] = TOKEN;
+
+        byte checksum = 0;
+        for (int i = 0; i < size + 5; i++)
+            checksum ^= msg[i];
+        msg[size + 5] = checksum;
+
+        serial.send(msg, size + 6);
+    }
+
+    /**
+     * Receive the next answer into the answer buffer.
+     *
+     * @return The length of the answer body, OUT_OF_SEQUENCE if it answers
+     *          an earlier command, otherwise -1 if failed.
+     */
+    private int recv() {
+        // Skip anything before the start of the message, e.g. line noise
+        int skipped = 0;
+        do {
+            if (serial.recv(head, 1) < 1 || ++skipped > MAX_BODY_SIZE)
+                return -1;
+        } while (head[0] != MESSAGE_START);
+
+        // sequence, size and token
+        if (serial.recv(head, 4) < 4)
+            return -1;
+
+        int size = ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+        if (head[3] != TOKEN || size == 0 || size > MAX_BODY_SIZE) {
+            System.err.println(serial.getName() + ": STK500v2.recv(): bad message header");
+            return -1;
+        }
+
+        // the body and the checksum
+        if (serial.recv(answer, size + 1) < size + 1) {
+            System.err.println(serial.getName() + ": STK500v2.recv(): read error");
+            return -1;
+        }
+
+        byte checksum = MESSAGE_START;
+        for (int i = 0; i < 4; i++)
+            checksum ^= head[i];
+        for (int i = 0; i <= size; i++)
+            checksum ^= answer[i];
+        if (checksum != 0) {
+            System.err.println(serial.getName() + ": STK500v2.recv(): checksum error");
+            return -1;
+        }
+
+        if (head[0] != sequence)
+            return OUT_OF_SEQUENCE;
+
+        return size;
+    }
+}
@@ -4,7 +4,9 @@ import com.intchip.devices.RxTxDevice;
 import cz.jaybee.intelhex.DataListener;
 import cz.jaybee.intelhex.Parser;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -14,6 +16,12 @@ import java.util.List;
  * of avr mcu board.
  */
 public class Uploader {
+
+    /** How many read blocks are buffered when verifying. */
+    static final int VERIFY_WINDOW_BLOCKS = 4;
+    /** How many bytes are dumped between the writes back to the storage. */
+    static final int DUMP_SYNC_BYTES = 16 * 1024;
+
     /**
      * Abstract class to show the progress bar for read/write.
      */
@@ -32,13 +40,20 @@ public class Uploader {
      * A naive class to hold the section memory read from
      * the intel hex or other output file.
      */
-    private static class Section {
+    public static class Section {
         public int address;
         public byte[] content;
+        /** STK500.MEM_FLASH or STK500.MEM_EEPROM. */
+        public char memtype;
 
         public Section(int address, byte[] content) {
+            this(address, content, STK500.MEM_FLASH);
+        }
+
+        public Section(int address, byte[] content, char memtype) {
             this.address = address;
             this.content = content;
+            this.memtype = memtype;
         }
 
         /**
@@ -49,7 +64,7 @@ public class Uploader {
          * @return true if merged, otherwise false.
          */
         public boolean merge(Section sect) {
-            if (address + content.length == sect.address) {
+            if (memtype == sect.memtype && address + content.length == sect.address) {
                 byte[] newContent =
                         new byte[content.length + sect.content.length];
 
@@ -63,16 +78,23 @@ public class Uploader {
         }
     }
 
-    private STK500 protocol;
+    private ProgrammerInterface protocol;
     private int baud;
     private int pagesize;
     private ProgressReporter progress;
-
-    public Uploader(STK500 protocol, int speed, int pagesize) {
+    private boolean verify;
+    private DeviceProfile profile;
+    private boolean autoProfile;
+    private boolean skipBlank;
+    private boolean quiet;
+    private boolean eeprom;
+
+    public Uploader(ProgrammerInterface protocol, int speed, int pagesize) {
         this.protocol = protocol;
         this.baud = speed;
         this.pagesize = pagesize;
         this.progress = null;
+        this.verify = true;
     }
 
     /**
@@ -123,6 +145,239 @@ public class Uploader {
         return pagesize;
     }
 
+    /**
+     * Whether to read the data back and verify it after uploading,
+     * the default is true.
+     * @param verify
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Get the verify mode.
+     * @return
+     */
+    public boolean getVerify() {
+        return verify;
+    }
+
+    /**
+     * Set the profile of the target MCU. The transfer sizes are then taken
+     * from the profile instead of pagesize, and the images overlapping the
+     * bootloader are rejected.
+     * @param profile
+     */
+    public void setProfile(DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Get the profile of the target MCU.
+     * @return
+     */
+    public DeviceProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Whether to identify the target MCU by its signature, and use the
+     * matching profile. The profile of each port is cached.
+     * @param auto
+     */
+    public void setAutoProfile(boolean auto) {
+        this.autoProfile = auto;
+    }
+
+    /**
+     * Whether to erase the chip before uploading, and then skip writing
+     * the flash pages which are all 0xff. The default is false,
+     * since optiboot ignores the chip erase command: with it the skipped
+     * pages keep their old contents, only use this with bootloaders and
+     * programmers which really erase the chip. The upload fails if the
+     * protocol can't erase the chip, e.g. with STK500v2, or with STK500
+     * without setChipEraseSupported(true). The skipped pages are still
+     * verified to be blank.
+     * @param skip
+     */
+    public void setSkipBlankPages(boolean skip) {
+        this.skipBlank = skip;
+    }
+
+    /**
+     * Get the blank page skipping mode.
+     * @return
+     */
+    public boolean getSkipBlankPages() {
+        return skipBlank;
+    }
+
+    /**
+     * Whether to hide the messages about the steps of an upload or a dump,
+     * e.g. when many ports are flashed at once. Errors are still shown.
+     * @param quiet
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    /**
+     * Get the quiet mode.
+     * @return
+     */
+    public boolean getQuiet() {
+        return quiet;
+    }
+
+    /**
+     * Whether to write and verify the eeprom contents of the image. The
+     * default is false: optiboot only supports the eeprom from version 6
+     * on, and the older ones (e.g. the 4.4 of the UNO) ignore the memory
+     * type and write the eeprom data into the flash instead.
+     * @param eeprom
+     */
+    public void setEeprom(boolean eeprom) {
+        this.eeprom = eeprom;
+    }
+
+    /**
+     * Get the eeprom mode.
+     * @return
+     */
+    public boolean getEeprom() {
+        return eeprom;
+    }
+
+    private void info(String message) {
+        if (!quiet)
+            System.out.println(message);
+    }
+
+    /**
+     * A part of the data to transfer, from a section or a stored page.
+     */
+    private static class Chunk {
+        final char memtype;
+        final int address;
+        final byte[] data;
+        final int offset;
+        final int length;
+        /** All the bytes are 0xff. */
+        final boolean blank;
+        /** A whole section, which may span many pages. */
+        final boolean section;
+
+        Chunk(char memtype, int address, byte[] data, int offset, int length,
+              boolean blank, boolean section) {
+            this.memtype = memtype;
+            this.address = address;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.blank = blank;
+            this.section = section;
+        }
+    }
+
+    private static List<Chunk> chunks(List<Section> sections) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (Section sect : sections) {
+            chunks.add(new Chunk(sect.memtype, sect.address, sect.content,
+                    0, sect.content.length, false, true));
+        }
+        return chunks;
+    }
+
+    private static List<Chunk> chunks(PagedImage image) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < image.size(); i++) {
+            PagedImage.PageRef ref = image.get(i);
+            chunks.add(new Chunk(ref.memtype, ref.address, ref.page.data, ref.page.offset,
+                    ref.page.length, ref.page.isBlank(), false));
+        }
+        return chunks;
+    }
+
+    /**
+     * Split the flash sections into the runs of blank pages, which are all
+     * 0xff, and the runs of other pages. The eeprom sections and the
+     * stored pages are kept as they are.
+     */
+    private static List<Chunk> splitBlank(List<Chunk> chunks, int pagesize) {
+        List<Chunk> split = new ArrayList<>();
+
+        for (Chunk chunk : chunks) {
+            if (!chunk.section || chunk.memtype != STK500.MEM_FLASH || pagesize <= 0) {
+                split.add(chunk);
+                continue;
+            }
+
+            int start = 0;
+            boolean runBlank = false;
+            int offset = 0;
+            while (offset < chunk.length) {
+                // The part of the section in the page of current offset
+                int end = Math.min(chunk.length,
+                        (chunk.address + offset) / pagesize * pagesize + pagesize - chunk.address);
+
+                boolean blank = true;
+                for (int i = offset; i < end && blank; i++)
+                    blank = chunk.data[chunk.offset + i] == (byte) 0xff;
+
+                if (offset > start && blank != runBlank) {
+                    split.add(new Chunk(chunk.memtype, chunk.address + start, chunk.data,
+                            chunk.offset + start, offset - start, runBlank, true));
+                    start = offset;
+                }
+                runBlank = blank;
+                offset = end;
+            }
+            split.add(new Chunk(chunk.memtype, chunk.address + start, chunk.data,
+                    chunk.offset + start, chunk.length - start, runBlank, true));
+        }
+
+        return split;
+    }
+
+    /**
+     * Check if the data fits in the application flash and the eeprom
+     * of the target.
+     *
+     * @return 0 if fit, otherwise -1.
+     */
+    private static int checkLayout(List<Chunk> chunks, DeviceProfile target) {
+        for (Chunk chunk : chunks) {
+            int end = chunk.address + chunk.length;
+            if (chunk.memtype == STK500.MEM_EEPROM) {
+                if (end > target.eepromSize) {
+                    System.err.println(
+                            String.format("Eeprom section 0x%04x-0x%04x exceeds the %d bytes eeprom of %s!",
+                                    chunk.address, end, target.eepromSize, target.name)
+                    );
+                    return -1;
+                }
+            } else if (end > target.bootStart) {
+                System.err.println(
+                        String.format("Section 0x%05x-0x%05x overlaps the bootloader of %s at 0x%05x!",
+                                chunk.address, end, target.name, target.bootStart)
+                );
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the profile of the target, before opening the protocol.
+     *
+     * @return The given or cached profile, or null if unknown.
+     */
+    private DeviceProfile knownProfile() {
+        if (profile != null || !autoProfile)
+            return profile;
+        return DeviceProfile.cached(protocol.getSerial().getName());
+    }
+
     /**
      * Call the progress reporter to report current progress.
      *
@@ -145,80 +400,176 @@ public class Uploader {
      * @return 0 if success, otherwise -1.
      */
     public int upload(List<Section> sections) {
+        return uploadAll(chunks(sections));
+    }
+
+    /**
+     * Upload an image of shared pages to the target MCU. The blank pages
+     * are known from the store, without looking at their bytes again.
+     *
+     * @param image
+     * @return 0 if success, otherwise -1.
+     */
+    public int upload(PagedImage image) {
+        return uploadAll(chunks(image));
+    }
+
+    private int uploadAll(List<Chunk> chunks) {
+        if (!eeprom)
+            chunks = flashOnly(chunks);
+
+        int ret = uploadChunks(chunks);
+
+        // The board may have been replaced, identify it again next time
+        if (ret != 0 && autoProfile)
+            DeviceProfile.forget(protocol.getSerial().getName());
+
+        return ret;
+    }
+
+    /**
+     * @return The flash chunks, the eeprom ones are left out.
+     */
+    private List<Chunk> flashOnly(List<Chunk> chunks) {
+        List<Chunk> flash = new ArrayList<>(chunks.size());
+        int skipped = 0;
+
+        for (Chunk chunk : chunks) {
+            if (chunk.memtype == STK500.MEM_EEPROM)
+                skipped += chunk.length;
+            else
+                flash.add(chunk);
+        }
+
+        if (skipped > 0)
+            info(String.format("Skipping the %d bytes of eeprom data, see setEeprom().", skipped));
+        return flash;
+    }
+
+    private int uploadChunks(List<Chunk> chunks) {
         try {
             int total = 0;
             int done = 0;
 
             // Get the total size to upload
-            for (Section sect : sections) {
-                total += sect.content.length;
+            for (Chunk chunk : chunks) {
+                total += chunk.length;
             }
 
+            // Reject the bad image before any bytes are sent, if possible
+            DeviceProfile target = knownProfile();
+            if (target != null && checkLayout(chunks, target) != 0)
+                return -1;
+
             // Init the device size
             if (protocol.open(baud) != 0) {
                 System.err.println("Cannot open serial port.");
                 return -1;
             }
 
+            if (target == null && autoProfile) {
+                target = DeviceProfile.identify(protocol);
+                if (target == null) {
+                    System.err.println("Cannot identify the target device.");
+                    return -1;
+                }
+                if (checkLayout(chunks, target) != 0)
+                    return -1;
+            }
+
+            // Use the largest transfers the target allows
+            int writeBlock = target != null ? target.pageSize : pagesize;
+            int readBlock = target != null ? target.maxReadBlock : pagesize;
+            int eepromBlock = target != null ? target.maxEepromBlock : pagesize;
+
+            if (skipBlank)
+                chunks = splitBlank(chunks, writeBlock);
+
             // Upload all the section data to the target side
-            System.out.println("Uploading the data ...");
+            info("Uploading the data ...");
 
             protocol.programEnable();
 
-            for (Section sect : sections) {
-                if (protocol.pagedWrite(sect.content, pagesize, sect.address) < 0) {
-                    System.err.println(
-                            String.format("Error when write page at 0x%04x!", sect.address)
-                    );
-                    return -1;
+            if (skipBlank && protocol.chipErase() < 0) {
+                System.err.println("Cannot erase the chip.");
+                return -1;
+            }
+
+            for (Chunk chunk : chunks) {
+                // The skipped blank pages are counted as done too
+                if (!skipped(chunk)) {
+                    int block = chunk.memtype == STK500.MEM_EEPROM ? eepromBlock : writeBlock;
+                    if (protocol.pagedWrite(chunk.memtype, chunk.data, block, chunk.address,
+                            chunk.offset, chunk.length) < 0) {
+                        System.err.println(
+                                String.format("Error when write page at 0x%04x!", chunk.address)
+                        );
+                        return -1;
+                    }
                 }
 
-                done += sect.content.length;
+                done += chunk.length;
                 reportProgress(done, total);
             }
 
-            protocol.disable();
+            info("Upload done.");
 
-            System.out.println("Upload done.");
+            // Leave the programming mode only at the end, since some
+            // bootloaders start the application then.
+            if (!verify)
+                return protocol.disable();
 
-            System.out.println("Downloading the data ...");
+            info("Downloading and verifying the data ...");
 
-            // Try to get the data from the target side
+            // Read the data back through a window of a few blocks, and
+            // compare it with the original data, so the memory used does
+            // not grow with the size of the image. The contiguous chunks
+            // are read together.
             done = 0;
-            byte[] buf = new byte[total];
+            byte[] window = new byte[Math.max(readBlock, eepromBlock) * VERIFY_WINDOW_BLOCKS];
+            List<Chunk> batch = new ArrayList<>();
+            int batchLength = 0;
+
+            // The skipped blank pages are read back too, to check that the
+            // chip erase has really left them blank.
+            for (Chunk chunk : chunks) {
+                for (int offset = 0; offset < chunk.length; ) {
+                    int length = Math.min(window.length, chunk.length - offset);
+
+                    if (batchLength > 0) {
+                        Chunk first = batch.get(0);
+                        if (first.memtype != chunk.memtype ||
+                                first.address + batchLength != chunk.address + offset ||
+                                batchLength + length > window.length) {
+                            if (verifyBatch(batch, batchLength, window,
+                                    first.memtype == STK500.MEM_EEPROM ? eepromBlock : readBlock) < 0)
+                                return -1;
+                            done += batchLength;
+                            reportProgress(done, total);
+                            batch.clear();
+                            batchLength = 0;
+                        }
+                    }
 
-            for (Section sect : sections) {
-                if (protocol.pagedLoad(buf, pagesize, sect.address, done, sect.content.length) < 0) {
-                    System.err.println(
-                            String.format("Error when load page at 0x%04x", sect.address)
-                    );
-                    return -1;
+                    batch.add(new Chunk(chunk.memtype, chunk.address + offset, chunk.data,
+                            chunk.offset + offset, length, false, false));
+                    batchLength += length;
+                    offset += length;
                 }
+            }
 
-                done += sect.content.length;
+            if (batchLength > 0) {
+                Chunk first = batch.get(0);
+                if (verifyBatch(batch, batchLength, window,
+                        first.memtype == STK500.MEM_EEPROM ? eepromBlock : readBlock) < 0)
+                    return -1;
+                done += batchLength;
                 reportProgress(done, total);
             }
 
-            System.out.println("Download done.");
-
-            System.out.println("Verify the data ...");
-
-            // All data received , verify if they are same with the original data.
-            int offset = 0;
-            for (Section sect : sections) {
-                int length = sect.content.length;
-                for (int i = 0; i < length; i++) {
-                    if (buf[offset++] != sect.content[i]) {
-                        System.err.println(
-                                String.format("Verfiy failure at 0x%04x, expected is 0x%02x, received is 0x%02x.",
-                                        sect.address + i, sect.content[i], buf[offset])
-                        );
-                        return -1;
-                    }
-                }
-            }
+            info("Verify OK!");
 
-            System.out.println("Verify OK!");
+            protocol.disable();
 
             return 0;
         } finally {
@@ -226,6 +577,44 @@ public class Uploader {
         }
     }
 
+    /**
+     * @return true if the chunk is a blank flash chunk left to the chip erase.
+     */
+    private boolean skipped(Chunk chunk) {
+        return skipBlank && chunk.blank && chunk.memtype == STK500.MEM_FLASH;
+    }
+
+    /**
+     * Read the contiguous chunks back with one transfer, and compare them.
+     *
+     * @return 0 if same, otherwise -1.
+     */
+    private int verifyBatch(List<Chunk> batch, int length, byte[] window, int block) {
+        Chunk first = batch.get(0);
+
+        if (protocol.pagedLoad(first.memtype, window, block, first.address, 0, length) < 0) {
+            System.err.println(
+                    String.format("Error when load page at 0x%04x", first.address)
+            );
+            return -1;
+        }
+
+        for (Chunk chunk : batch) {
+            int base = chunk.address - first.address;
+            for (int i = 0; i < chunk.length; i++) {
+                if (window[base + i] != chunk.data[chunk.offset + i]) {
+                    System.err.println(
+                            String.format("Verfiy failure at 0x%04x, expected is 0x%02x, received is 0x%02x.",
+                                    chunk.address + i, chunk.data[chunk.offset + i], window[base + i])
+                    );
+                    return -1;
+                }
+            }
+        }
+
+        return 0;
+    }
+
     /**
      * Upload a single serial section.
      *
@@ -243,20 +632,34 @@ public class Uploader {
     /**
      * Try to upload code of an intel hex format file to the programming space of target MCU,
      * and then read the data back to verify if all the data is written correctly.
+     * The eeprom contents of the file, if any, are skipped (see setEeprom()).
      *
-     * @param ihex The intel hex format file to hold the executable code for MCU.
+     * @param ihex The intel hex format file to hold the executable code for MCU,
+     *             or an ELF file.
      * @param tty   The target serial port connected to the MCU's uart port.
      * @param speed The baud rate.
-     * @param pagesize The pagesize of the programming flash of target MCU.
+     * @param pagesize The pagesize of the programming flash of target MCU,
+     *                 0 to identify the target MCU by its signature.
      * @return  0 if success, otherwise -1.
      * @throws Exception
      */
     public static int avrdude(String ihex, String tty, int speed, int pagesize)
         throws Exception
+    {
+        return avrdude(ihex, new RxTxDevice(tty), speed, pagesize);
+    }
+
+    /**
+     * Same as avrdude(ihex, tty, speed, pagesize), but talk to the MCU through
+     * the given serial device, e.g. a recording or simulated one.
+     */
+    public static int avrdude(String ihex, SerialDeviceInterface serial, int speed, int pagesize)
+        throws Exception
     {
         Uploader up = new Uploader(
-                new STK500(new RxTxDevice(tty)), speed, pagesize
+                new STK500(serial), speed, pagesize
         );
+        up.setAutoProfile(pagesize <= 0);
 
         up.addProgressReporter(new ProgressReporter() {
             private int last = 0;
@@ -275,40 +678,140 @@ public class Uploader {
             }
         });
 
-        List<Section> sections = new ArrayList<>();
+        List<Section> sections = parseImage(ihex, pagesize > 0 ? pagesize : DeviceProfile.MAX_PAGESIZE);
 
-        InputStream is = new FileInputStream(ihex);
+        if (sections.size() == 0)
+            return -1;
 
-        Parser parser = new Parser(is);
+        return up.upload(sections);
+    }
 
-        parser.setDataListener(new DataListener() {
-            Section section = null;
+    /**
+     * The address of the eeprom data in the intel hex and ELF files of avr-gcc.
+     */
+    static final int EEPROM_OFFSET = 0x810000;
 
-            @Override
-            public void data(long address, byte[] data) {
-                Section sect = new Section((int)address, data);
-
-                // The base address of each section must be align to pagesize,
-                // however, the ihex parser not do any merge, so we must merge
-                // the data of sections nearby.
-                if (section == null ||
-                        section.content.length >= pagesize ||
-                        !section.merge(sect)) {
-                    section = sect;
+    /**
+     * Build the sections from the records of the hex or ELF parser.
+     */
+    private static class SectionBuilder implements DataListener {
+        final List<Section> sections = new ArrayList<>();
+        final int pagesize;
+        final boolean eeprom;
+        Section flashSection = null;
+        Section eepromSection = null;
+
+        SectionBuilder(int pagesize, boolean eeprom) {
+            this.pagesize = pagesize;
+            this.eeprom = eeprom;
+        }
+
+        @Override
+        public void data(long address, byte[] data) {
+            if (eeprom || address >= EEPROM_OFFSET) {
+                if (!eeprom) {
+                    // Skip the fuses, lock bits and signature sections
+                    if (address >= EEPROM_OFFSET + 0x10000)
+                        return;
+                    address -= EEPROM_OFFSET;
+                }
+
+                // The eeprom has no pages, merge everything contiguous
+                // and let it be sent in the largest blocks.
+                Section sect = new Section((int)address, data, STK500.MEM_EEPROM);
+                if (eepromSection == null || !eepromSection.merge(sect)) {
+                    eepromSection = sect;
                     sections.add(sect);
                 }
+                return;
             }
 
-            @Override
-            public void eof() {}
-        });
+            Section sect = new Section((int)address, data);
+
+            // The base address of each section must be align to pagesize,
+            // however, the ihex parser not do any merge, so we must merge
+            // the data of sections nearby.
+            if (flashSection == null ||
+                    flashSection.content.length >= pagesize ||
+                    !flashSection.merge(sect)) {
+                flashSection = sect;
+                sections.add(sect);
+            }
+        }
+
+        @Override
+        public void eof() {}
+    }
+
+    /**
+     * Parse an intel hex format stream into sections, merging the
+     * contiguous records up to pagesize bytes. The data at 0x810000
+     * and above is the eeprom contents.
+     *
+     * @param is The intel hex format input.
+     * @param pagesize The pagesize of the programming flash of target MCU.
+     * @return The sections, in the order of the input.
+     * @throws Exception
+     */
+    public static List<Section> parseHex(InputStream is, int pagesize)
+        throws Exception
+    {
+        SectionBuilder builder = new SectionBuilder(pagesize, false);
 
+        Parser parser = new Parser(is);
+        parser.setDataListener(builder);
         parser.parse();
 
-        if (sections.size() == 0)
-            return -1;
+        return builder.sections;
+    }
 
-        return up.upload(sections);
+    /**
+     * Parse the flash and eeprom contents of an avr-gcc ELF file into sections.
+     */
+    public static List<Section> parseElf(InputStream is, int pagesize)
+        throws Exception
+    {
+        SectionBuilder builder = new SectionBuilder(pagesize, false);
+
+        ElfParser parser = new ElfParser(is);
+        parser.setDataListener(builder);
+        parser.parse();
+
+        return builder.sections;
+    }
+
+    /**
+     * Parse an image file into sections, according to its contents:
+     * an ELF file, an intel hex file of the eeprom only (*.eep), or an
+     * intel hex file.
+     *
+     * @param path The image file.
+     * @param pagesize The pagesize of the programming flash of target MCU.
+     * @return The sections.
+     * @throws Exception
+     */
+    public static List<Section> parseImage(String path, int pagesize)
+        throws Exception
+    {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(path))) {
+            byte[] head = new byte[4];
+            is.mark(head.length);
+            int n = is.read(head);
+            is.reset();
+
+            if (n == head.length && ElfParser.isElf(head))
+                return parseElf(is, pagesize);
+
+            if (path.endsWith(".eep")) {
+                SectionBuilder builder = new SectionBuilder(pagesize, true);
+                Parser parser = new Parser(is);
+                parser.setDataListener(builder);
+                parser.parse();
+                return builder.sections;
+            }
+
+            return parseHex(is, pagesize);
+        }
     }
 
     /**
@@ -316,12 +819,98 @@ public class Uploader {
      */
     public int load(byte[] mem, int address) {
         try {
-            if (protocol.open(baud) != 0 ||
-                    protocol.pagedLoad(mem, pagesize, address) < 0) {
+            if (protocol.open(baud) != 0)
+                return -1;
+
+            DeviceProfile target = profile;
+            if (target == null && autoProfile && (target = DeviceProfile.identify(protocol)) == null)
+                return -1;
+
+            int readBlock = target != null ? target.maxReadBlock : pagesize;
+            if (protocol.pagedLoad(STK500.MEM_FLASH, mem, readBlock, address, 0, mem.length) < 0)
+                return -1;
+
+            return 0;
+        } finally {
+            protocol.close();
+        }
+    }
+
+    /**
+     * Dump the flash or eeprom of the target MCU into a file, as raw binary
+     * or intel hex. The data is written into the file page by page as it
+     * is read, and the file is cut after the last complete part if the
+     * dump fails.
+     *
+     * @param path The file to write.
+     * @param memtype STK500.MEM_FLASH or STK500.MEM_EEPROM.
+     * @param address The first address to dump.
+     * @param length How many bytes to dump, 0 for the rest of the memory
+     *               of the target profile.
+     * @param hex true for intel hex, false for raw binary.
+     * @return 0 if success, otherwise -1.
+     */
+    public int dump(String path, char memtype, int address, int length, boolean hex) {
+        try {
+            if (protocol.open(baud) != 0) {
+                System.err.println("Cannot open serial port.");
+                return -1;
+            }
+
+            DeviceProfile target = profile;
+            if (target == null && autoProfile && (target = DeviceProfile.identify(protocol)) == null) {
+                System.err.println("Cannot identify the target device.");
                 return -1;
             }
 
+            if (length <= 0) {
+                if (target == null) {
+                    System.err.println("The memory size of the target is unknown.");
+                    return -1;
+                }
+                length = (memtype == STK500.MEM_EEPROM ? target.eepromSize : target.flashSize) - address;
+            }
+
+            int block;
+            if (memtype == STK500.MEM_EEPROM)
+                block = target != null ? target.maxEepromBlock : pagesize;
+            else
+                block = target != null ? target.maxReadBlock : pagesize;
+
+            byte[] window = new byte[block * VERIFY_WINDOW_BLOCKS];
+
+            info("Dumping the data ...");
+
+            try (DumpFile out = new DumpFile(path, address, length, hex)) {
+                int synced = 0;
+
+                for (int offset = 0; offset < length; offset += window.length) {
+                    int n = Math.min(window.length, length - offset);
+
+                    if (protocol.pagedLoad(memtype, window, block, address + offset, 0, n) < 0) {
+                        System.err.println(
+                                String.format("Error when load page at 0x%04x", address + offset)
+                        );
+                        return -1;
+                    }
+
+                    out.write(window, 0, n);
+
+                    if (offset + n - synced >= DUMP_SYNC_BYTES) {
+                        out.force();
+                        synced = offset + n;
+                    }
+                    reportProgress(offset + n, length);
+                }
+
+                out.finish();
+            }
+
+            info("Dump done.");
             return 0;
+        } catch (IOException e) {
+            System.err.println("Cannot write " + path + ": " + e.getMessage());
+            return -1;
         } finally {
             protocol.close();
         }
@@ -371,6 +960,6 @@ public class Uploader {
     */
 
     public static void main(String[] arguments) throws Exception {
-       avrdude(arguments[0], "/dev/ttyUSB1", 115200, 128);
+       avrdude(arguments[0], "/dev/ttyUSB1", 115200, 0);
     }
 }
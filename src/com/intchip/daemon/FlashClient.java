@@ -0,0 +1,61 @@
+package com.intchip.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Submit a job to a running FlashDaemon and print its results.
+ *
+ * Usage: FlashClient [daemon port] key=value...
+ * e.g. FlashClient port=/dev/ttyUSB1 image=sketch.hex verify=none
+ */
+public class FlashClient {
+
+    public static void main(String[] arguments) throws Exception {
+        int daemon = FlashDaemon.DEFAULT_PORT;
+        StringBuilder job = new StringBuilder("FLASH");
+
+        for (String arg : arguments) {
+            if (!arg.contains("=")) {
+                daemon = Integer.parseInt(arg);
+            } else if (arg.startsWith("image=")) {
+                // The daemon may run in another directory
+                job.append(" image=").append(
+                        new File(arg.substring("image=".length())).getAbsolutePath());
+            } else {
+                job.append(' ').append(arg);
+            }
+        }
+
+        int status = 1;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon)) {
+            PrintWriter out = new PrintWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            out.println(job);
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("ERROR"))
+                    break;
+                if (line.startsWith("DONE")) {
+                    status = line.contains(" status=0 ") ? 0 : 1;
+                    break;
+                }
+            }
+
+            out.println("QUIT");
+        }
+
+        System.exit(status);
+    }
+}
@@ -0,0 +1,166 @@
+package com.intchip.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long running flashing service, which saves the JVM startup and keeps
+ * the parsed images and the port sessions warm between the jobs.
+ *
+ * Clients connect to a local TCP port and send one FLASH line for each job
+ * (see FlashJob), and the daemon answers with lines of:
+ * <pre>
+ *   QUEUED id position
+ *   START id
+ *   PROGRESS id percentage
+ *   DONE id status timing...
+ *   ERROR message
+ * </pre>
+ * The jobs of a port run one at a time, the ports run in parallel.
+ *
+ * Usage: FlashDaemon [port]
+ */
+public class FlashDaemon {
+
+    public static final int DEFAULT_PORT = 7500;
+
+    private static final int IMAGE_CACHE_SIZE = 64;
+
+    private final ServerSocket server;
+    private final ImageCache images = new ImageCache(IMAGE_CACHE_SIZE);
+    private final ConcurrentHashMap<String, PortWorker> workers = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    public FlashDaemon(int port) throws IOException {
+        // Only local clients
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept the clients until the server socket is closed.
+     */
+    public void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "flash-client-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    System.err.println("FlashDaemon: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private PortWorker worker(String port) {
+        PortWorker worker = workers.get(port);
+        if (worker != null)
+            return worker;
+
+        synchronized (workers) {
+            worker = workers.get(port);
+            if (worker == null) {
+                worker = new PortWorker(port, images);
+                Thread thread = new Thread(worker, "flash-port-" + port);
+                thread.setDaemon(true);
+                thread.start();
+                workers.put(port, worker);
+            }
+        }
+        return worker;
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            final PrintWriter out = new PrintWriter(
+                    new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+
+            FlashJob.Listener listener = new FlashJob.Listener() {
+                @Override
+                public void started(FlashJob job) {
+                    reply(out, "START " + job.id);
+                }
+
+                @Override
+                public void progress(FlashJob job, int percentage) {
+                    reply(out, "PROGRESS " + job.id + " " + percentage);
+                }
+
+                @Override
+                public void finished(FlashJob job, int status, String timing) {
+                    reply(out, "DONE " + job.id + " status=" + status + " " + timing);
+                }
+            };
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                if (line.equals("QUIT"))
+                    break;
+
+                if (!line.startsWith("FLASH ")) {
+                    reply(out, "ERROR unknown command");
+                    continue;
+                }
+
+                FlashJob job;
+                try {
+                    job = FlashJob.parse(ids.incrementAndGet(), s,
+                            line.substring("FLASH ".length()), listener);
+                } catch (IllegalArgumentException e) {
+                    reply(out, "ERROR " + e.getMessage());
+                    continue;
+                }
+
+                // Hold the output, so QUEUED always comes before START
+                synchronized (out) {
+                    int position = worker(job.port).submit(job);
+                    reply(out, "QUEUED " + job.id + " " + position);
+                }
+            }
+        } catch (IOException e) {
+            // client gone
+        }
+    }
+
+    private static void reply(PrintWriter out, String line) {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    public static void main(String[] arguments) throws IOException {
+        int port = arguments.length > 0 ? Integer.parseInt(arguments[0]) : DEFAULT_PORT;
+
+        FlashDaemon daemon = new FlashDaemon(port);
+        System.out.println("Flash daemon listening on 127.0.0.1:" + daemon.getPort());
+        daemon.serve();
+    }
+}
@@ -0,0 +1,148 @@
+package com.intchip.daemon;
+
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A flashing job submitted to the FlashDaemon.
+ *
+ * A job is sent as a single line of space separated key=value pairs:
+ * <pre>
+ *   FLASH port=/dev/ttyUSB1 baud=115200 pagesize=128 verify=full image=/path/to/sketch.hex
+ *   FLASH port=/dev/ttyUSB1 address=0 data=&lt;base64 of the raw binary&gt;
+ *   FLASH port=/dev/ttyACM0 protocol=stk500v2 image=/path/to/sketch.hex
+ *   FLASH port=/dev/ttyUSB1 image=/path/to/sketch.hex patch=0x7f00:&lt;hex&gt;,0x810000:&lt;hex&gt;
+ * </pre>
+ * Without pagesize (or with pagesize=0), the target is identified by its
+ * signature. The protocol is stk500v1 (optiboot, the default) or stk500v2
+ * (the wiring bootloader of the Mega 2560). The patch replaces the bytes
+ * at the given addresses, e.g. the serial number of each device, and the
+ * eeprom is at 0x810000 (see PagedImage.patch()). The eeprom contents are
+ * only written with eeprom=yes (see Uploader.setEeprom()).
+ */
+public class FlashJob {
+
+    /**
+     * Where the results and progress of the job are sent.
+     */
+    public interface Listener {
+        void started(FlashJob job);
+
+        void progress(FlashJob job, int percentage);
+
+        void finished(FlashJob job, int status, String timing);
+    }
+
+    public final int id;
+    public final Object client;
+    public final String port;
+    public final int baud;
+    /** The flash page size, 0 to identify the target. */
+    public final int pagesize;
+    public final boolean verify;
+    /** Write the eeprom contents of the image too. */
+    public final boolean eeprom;
+    /** Talk STK500v2 instead of STK500 to the bootloader. */
+    public final boolean v2;
+    /** The intel hex file to upload, or null if data is given. */
+    public final String image;
+    /** The raw binary to upload at address, or null if image is given. */
+    public final byte[] data;
+    public final int address;
+    /** The bytes to replace in the image, by address, may be empty. */
+    public final Map<Integer, byte[]> patch;
+    public final Listener listener;
+
+    /** When the job was queued, in nanoseconds. */
+    final long queuedAt;
+
+    FlashJob(int id, Object client, String port, int baud, int pagesize, boolean verify,
+             boolean eeprom, boolean v2, String image, byte[] data, int address, Map<Integer, byte[]> patch,
+             Listener listener) {
+        this.id = id;
+        this.client = client;
+        this.port = port;
+        this.baud = baud;
+        this.pagesize = pagesize;
+        this.verify = verify;
+        this.eeprom = eeprom;
+        this.v2 = v2;
+        this.image = image;
+        this.data = data;
+        this.address = address;
+        this.patch = patch;
+        this.listener = listener;
+        this.queuedAt = System.nanoTime();
+    }
+
+    /**
+     * Parse the key=value pairs after the FLASH keyword.
+     *
+     * @throws IllegalArgumentException if the request is invalid.
+     */
+    static FlashJob parse(int id, Object client, String line, Listener listener) {
+        Map<String, String> args = new HashMap<>();
+        for (String token : line.trim().split("\\s+")) {
+            int eq = token.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("bad argument " + token);
+            args.put(token.substring(0, eq), token.substring(eq + 1));
+        }
+
+        String port = args.get("port");
+        if (port == null)
+            throw new IllegalArgumentException("no port");
+
+        String image = args.get("image");
+        String data = args.get("data");
+        if ((image == null) == (data == null))
+            throw new IllegalArgumentException("either image or data is needed");
+
+        String verify = args.containsKey("verify") ? args.get("verify") : "full";
+        if (!verify.equals("full") && !verify.equals("none"))
+            throw new IllegalArgumentException("verify must be full or none");
+
+        String eeprom = args.containsKey("eeprom") ? args.get("eeprom") : "no";
+        if (!eeprom.equals("yes") && !eeprom.equals("no"))
+            throw new IllegalArgumentException("eeprom must be yes or no");
+
+        String protocol = args.containsKey("protocol") ? args.get("protocol") : "stk500v1";
+        if (!protocol.equals("stk500v1") && !protocol.equals("stk500v2"))
+            throw new IllegalArgumentException("protocol must be stk500v1 or stk500v2");
+
+        return new FlashJob(id, client, port,
+                Integer.parseInt(args.containsKey("baud") ? args.get("baud") : "115200"),
+                Integer.parseInt(args.containsKey("pagesize") ? args.get("pagesize") : "0"),
+                verify.equals("full"),
+                eeprom.equals("yes"),
+                protocol.equals("stk500v2"),
+                image,
+                data != null ? Base64.getDecoder().decode(data) : null,
+                Integer.decode(args.containsKey("address") ? args.get("address") : "0"),
+                args.containsKey("patch") ? parsePatch(args.get("patch")) :
+                        Collections.<Integer, byte[]>emptyMap(),
+                listener);
+    }
+
+    /**
+     * Parse the comma separated address:hexbytes pairs of a patch.
+     */
+    private static Map<Integer, byte[]> parsePatch(String patch) {
+        Map<Integer, byte[]> patches = new TreeMap<>();
+        for (String entry : patch.split(",")) {
+            int colon = entry.indexOf(':');
+            String hex = colon > 0 ? entry.substring(colon + 1) : "";
+            if (hex.isEmpty() || hex.length() % 2 != 0)
+                throw new IllegalArgumentException("bad patch " + entry);
+
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            patches.put(Integer.decode(entry.substring(0, colon)), bytes);
+        }
+        return patches;
+    }
+}
@@ -0,0 +1,82 @@
+package com.intchip.daemon;
+
+import com.intchip.DeviceProfile;
+import com.intchip.PageStore;
+import com.intchip.PagedImage;
+import com.intchip.Uploader;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keep the parsed image files, so a sketch flashed many times
+ * is only parsed once. An entry is reparsed when the file changes.
+ *
+ * The images share their identical pages through a PageStore, so many
+ * variants of a firmware cost little more than one.
+ */
+class ImageCache {
+
+    private static class Cached {
+        final long modified;
+        final long length;
+        final PagedImage image;
+
+        Cached(long modified, long length, PagedImage image) {
+            this.modified = modified;
+            this.length = length;
+            this.image = image;
+        }
+    }
+
+    private final Map<String, Cached> entries;
+    private final PageStore store = new PageStore();
+
+    ImageCache(final int capacity) {
+        // LRU order
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return The store of the pages of the images.
+     */
+    PageStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get the image of the intel hex file, parse it if needed.
+     *
+     * @param hit Set hit[0] to true if the image comes from the cache.
+     */
+    PagedImage get(String path, int pagesize, boolean[] hit) throws Exception {
+        File file = new File(path);
+        String key = file.getCanonicalPath() + "@" + pagesize;
+        long modified = file.lastModified();
+        long length = file.length();
+
+        synchronized (entries) {
+            Cached entry = entries.get(key);
+            if (entry != null && entry.modified == modified && entry.length == length) {
+                hit[0] = true;
+                return entry.image;
+            }
+        }
+
+        int size = pagesize > 0 ? pagesize : DeviceProfile.MAX_PAGESIZE;
+        PagedImage image = PagedImage.build(store, Uploader.parseImage(file.getPath(), size), size);
+
+        synchronized (entries) {
+            entries.put(key, new Cached(modified, length, image));
+        }
+
+        hit[0] = false;
+        return image;
+    }
+}
@@ -0,0 +1,142 @@
+package com.intchip.daemon;
+
+import com.intchip.DeviceProfile;
+import com.intchip.PagedImage;
+import com.intchip.ProgrammerInterface;
+import com.intchip.STK500;
+import com.intchip.STK500v2;
+import com.intchip.Uploader;
+import com.intchip.Uploader.Section;
+import com.intchip.devices.Devices;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Run the jobs of a single serial port one after another.
+ *
+ * Each client has its own queue, and the worker takes one job of each
+ * client in turn, so a client submitting many jobs can not starve the
+ * others. The serial device and protocol objects of the port are kept
+ * between the jobs.
+ */
+class PortWorker
+        implements Runnable {
+
+    private final String port;
+    private final ImageCache images;
+
+    /** The queues of the clients, in round-robin order. */
+    private final LinkedHashMap<Object, ArrayDeque<FlashJob>> queues = new LinkedHashMap<>();
+    private int queued;
+
+    private ProgrammerInterface protocol;
+
+    PortWorker(String port, ImageCache images) {
+        this.port = port;
+        this.images = images;
+    }
+
+    /**
+     * Queue a job on this port.
+     *
+     * @return How many jobs are waiting on the port, including this one.
+     */
+    synchronized int submit(FlashJob job) {
+        ArrayDeque<FlashJob> queue = queues.get(job.client);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(job.client, queue);
+        }
+        queue.add(job);
+        queued++;
+
+        notifyAll();
+        return queued;
+    }
+
+    /**
+     * Take the next job, from the client after the one served last.
+     */
+    private synchronized FlashJob next() throws InterruptedException {
+        while (queued == 0)
+            wait();
+
+        Iterator<Map.Entry<Object, ArrayDeque<FlashJob>>> it = queues.entrySet().iterator();
+        Map.Entry<Object, ArrayDeque<FlashJob>> entry = it.next();
+        FlashJob job = entry.getValue().poll();
+        queued--;
+
+        // Move the client to the end of the round
+        it.remove();
+        if (!entry.getValue().isEmpty())
+            queues.put(entry.getKey(), entry.getValue());
+
+        return job;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true)
+                execute(next());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(final FlashJob job) {
+        long start = System.nanoTime();
+        job.listener.started(job);
+
+        int status = -1;
+        boolean[] cached = new boolean[1];
+        long parsed = start;
+
+        try {
+            PagedImage image;
+            if (job.image != null) {
+                image = images.get(job.image, job.pagesize, cached);
+            } else {
+                List<Section> sections = new ArrayList<>();
+                sections.add(new Section(job.address, job.data));
+                image = PagedImage.build(images.getStore(), sections,
+                        job.pagesize > 0 ? job.pagesize : DeviceProfile.MAX_PAGESIZE);
+            }
+            if (!job.patch.isEmpty())
+                image = image.patch(job.patch);
+            parsed = System.nanoTime();
+
+            if (job.v2 && !(protocol instanceof STK500v2))
+                protocol = new STK500v2(Devices.forName(port));
+            else if (!job.v2 && !(protocol instanceof STK500))
+                protocol = new STK500(Devices.forName(port));
+
+            Uploader up = new Uploader(protocol, job.baud, job.pagesize);
+            up.setVerify(job.verify);
+            up.setEeprom(job.eeprom);
+            up.setAutoProfile(job.pagesize <= 0);
+            up.addProgressReporter(new Uploader.ProgressReporter() {
+                @Override
+                public void report(int percentage) {
+                    job.listener.progress(job, percentage);
+                }
+            });
+
+            if (image.size() > 0)
+                status = up.upload(image);
+        } catch (Exception e) {
+            System.err.println(port + ": job " + job.id + " failed: " + e);
+        }
+
+        long end = System.nanoTime();
+        job.listener.finished(job, status, String.format(
+                "queue_ms=%.1f parse_ms=%.1f flash_ms=%.1f total_ms=%.1f cached=%b",
+                (start - job.queuedAt) / 1e6, (parsed - start) / 1e6,
+                (end - parsed) / 1e6, (end - job.queuedAt) / 1e6, cached[0]));
+    }
+}
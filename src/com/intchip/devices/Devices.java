@@ -0,0 +1,28 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+/**
+ * Create the serial device for a port name:
+ * <ul>
+ *   <li>"tcp://host:port" and "rfc2217://host:port" for NetworkDevice,</li>
+ *   <li>"sim:name" for a SimulatedTarget,</li>
+ *   <li>"termios:/dev/ttyUSB0" for TermiosDevice,</li>
+ *   <li>anything else, e.g. "/dev/ttyUSB0", for RxTxDevice.</li>
+ * </ul>
+ */
+public class Devices {
+
+    private Devices() {
+    }
+
+    public static SerialDeviceInterface forName(String name) {
+        if (name.startsWith("tcp://") || name.startsWith("rfc2217://"))
+            return new NetworkDevice(name);
+        if (name.startsWith("sim:"))
+            return new SimulatedTarget(name);
+        if (name.startsWith("termios:"))
+            return new TermiosDevice(name.substring("termios:".length()));
+        return new RxTxDevice(name);
+    }
+}
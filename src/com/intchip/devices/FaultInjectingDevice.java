@@ -0,0 +1,323 @@
+package com.intchip.devices;
+
+import com.intchip.STK500;
+import com.intchip.SerialDeviceInterface;
+
+import java.util.Random;
+
+/**
+ * A decorator of any serial device, which injects faults into the
+ * communication: bit errors, dropped bytes, truncated reads, spurious
+ * NOSYNC responses and latency spikes.
+ *
+ * All the faults are drawn from a seeded random generator, so a run with
+ * the same profile, seed and traffic is reproducible. The decorator also
+ * measures the throughput and how long the protocol needs to recover
+ * from the injected faults.
+ */
+public class FaultInjectingDevice
+        implements SerialDeviceInterface {
+
+    /**
+     * The probabilities of each kind of fault.
+     */
+    public static class FaultProfile {
+        public static final FaultProfile CLEAN =
+                new FaultProfile("clean", 0, 0, 0, 0, 0, 0);
+        public static final FaultProfile NOISY =
+                new FaultProfile("noisy", 1e-5, 0, 0, 0, 0, 0);
+        public static final FaultProfile LOSSY =
+                new FaultProfile("lossy", 0, 1e-4, 0, 0, 0, 0);
+        public static final FaultProfile NOSYNC =
+                new FaultProfile("nosync", 0, 0, 0, 0.01, 0, 0);
+        public static final FaultProfile STALLING =
+                new FaultProfile("stalling", 0, 0, 0.005, 0, 0, 0);
+        public static final FaultProfile SPIKES =
+                new FaultProfile("spikes", 0, 0, 0, 0, 0.01, 50);
+
+        public static final FaultProfile[] PRESETS = {
+                CLEAN, NOISY, LOSSY, NOSYNC, STALLING, SPIKES
+        };
+
+        public final String name;
+        /** Probability of flipping each bit on the wire. */
+        public final double bitErrorRate;
+        /** Probability of losing each byte on the wire. */
+        public final double dropProbability;
+        /** Probability that a recv() returns less bytes than asked. */
+        public final double truncateProbability;
+        /** Probability that a recv() starts with a spurious NOSYNC. */
+        public final double nosyncProbability;
+        /** Probability that a recv() is delayed by spikeMillis. */
+        public final double spikeProbability;
+        public final int spikeMillis;
+
+        public FaultProfile(String name, double bitErrorRate, double dropProbability,
+                            double truncateProbability, double nosyncProbability,
+                            double spikeProbability, int spikeMillis) {
+            this.name = name;
+            this.bitErrorRate = bitErrorRate;
+            this.dropProbability = dropProbability;
+            this.truncateProbability = truncateProbability;
+            this.nosyncProbability = nosyncProbability;
+            this.spikeProbability = spikeProbability;
+            this.spikeMillis = spikeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Counters of a fault injection session.
+     */
+    public static class Stats {
+        public long bytesSent;
+        public long bytesReceived;
+        public long bitErrors;
+        public long drops;
+        public long truncations;
+        public long nosyncs;
+        public long spikes;
+        public long recoveries;
+        public long totalRecoveryNanos;
+        public long maxRecoveryNanos;
+        public long elapsedNanos;
+
+        public long faults() {
+            return bitErrors + drops + truncations + nosyncs + spikes;
+        }
+
+        /**
+         * @return The average recovery time in milliseconds.
+         */
+        public double meanRecoveryMillis() {
+            return recoveries == 0 ? 0 : totalRecoveryNanos / 1e6 / recoveries;
+        }
+
+        /**
+         * @return The bytes sent and received for each second.
+         */
+        public double throughput() {
+            return elapsedNanos == 0 ? 0 : (bytesSent + bytesReceived) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("faults=%d (ber=%d drop=%d trunc=%d nosync=%d spike=%d) " +
+                            "recoveries=%d mean=%.1fms max=%.1fms throughput=%.0fB/s",
+                    faults(), bitErrors, drops, truncations, nosyncs, spikes,
+                    recoveries, meanRecoveryMillis(), maxRecoveryNanos / 1e6, throughput());
+        }
+    }
+
+    private final SerialDeviceInterface device;
+    private final FaultProfile profile;
+    private final Random random;
+    private Stats stats = new Stats();
+
+    private long openedAt;
+    private long faultAt = -1;
+
+    /** The answer to the last command sent, see completeAnswer(). */
+    private boolean commandSent;
+    private boolean answerFaulted;
+    private int answerLength;
+    private byte answerFirst;
+    private byte answerLast;
+    private long answerAt;
+
+    public FaultInjectingDevice(SerialDeviceInterface device, FaultProfile profile, long seed) {
+        this.device = device;
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    public FaultProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return The counters of the current (or last) session, since open().
+     */
+    public Stats getStats() {
+        if (openedAt != 0)
+            stats.elapsedNanos = System.nanoTime() - openedAt;
+        return stats;
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public int open() {
+        int ret = device.open();
+        stats = new Stats();
+        faultAt = -1;
+        commandSent = false;
+        openedAt = System.nanoTime();
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        completeAnswer();
+        stats.elapsedNanos = System.nanoTime() - openedAt;
+        openedAt = 0;
+        device.close();
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        return device.setspeed(baud);
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        completeAnswer();
+        commandSent = true;
+        answerFaulted = false;
+        answerLength = 0;
+
+        long errors = stats.drops + stats.bitErrors;
+        byte[] wire = new byte[size];
+        int n = corrupt(buf, 0, size, wire);
+
+        stats.bytesSent += size;
+        if (stats.drops + stats.bitErrors != errors)
+            fault();
+
+        if (device.send(wire, n) < 0)
+            return -1;
+        return size;
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        boolean faulted = false;
+
+        if (chance(profile.spikeProbability)) {
+            stats.spikes++;
+            faulted = true;
+            sleep(profile.spikeMillis);
+        }
+
+        int want = size;
+        if (size > 0 && chance(profile.truncateProbability)) {
+            stats.truncations++;
+            faulted = true;
+            want = random.nextInt(size);
+        }
+
+        // Keep reading to replace the dropped bytes
+        long errors = stats.drops + stats.bitErrors;
+        int nr = 0;
+        byte[] tmp = new byte[want];
+        while (nr < want) {
+            int n = device.recv(tmp, want - nr);
+            if (n < 0)
+                return -1;
+            if (n == 0)
+                break;
+
+            int kept = corrupt(tmp, 0, n, tmp);
+            System.arraycopy(tmp, 0, buf, nr, kept);
+            nr += kept;
+        }
+
+        if (stats.drops + stats.bitErrors != errors)
+            faulted = true;
+
+        if (nr > 0 && chance(profile.nosyncProbability)) {
+            stats.nosyncs++;
+            faulted = true;
+            buf[0] = STK500.Resp_STK_NOSYNC;
+        }
+
+        stats.bytesReceived += nr;
+
+        if (faulted)
+            fault();
+
+        if (commandSent && nr > 0) {
+            if (answerLength == 0)
+                answerFirst = buf[0];
+            answerLast = buf[nr - 1];
+            answerLength += nr;
+            answerAt = System.nanoTime();
+        }
+
+        return nr;
+    }
+
+    /**
+     * Count a recovery if the answer to the last command is the first
+     * complete INSYNC ... OK answer since the fault. The answer is only
+     * known to be complete when the next command is sent, since a page
+     * read may end with a byte equal to OK.
+     */
+    private void completeAnswer() {
+        if (faultAt >= 0 && commandSent && !answerFaulted && answerLength >= 2 &&
+                answerFirst == STK500.Resp_STK_INSYNC && answerLast == STK500.Resp_STK_OK) {
+            long nanos = answerAt - faultAt;
+            stats.recoveries++;
+            stats.totalRecoveryNanos += nanos;
+            stats.maxRecoveryNanos = Math.max(stats.maxRecoveryNanos, nanos);
+            faultAt = -1;
+        }
+        commandSent = false;
+    }
+
+    @Override
+    public int drain() {
+        return device.drain();
+    }
+
+    /**
+     * Copy src to dst, dropping and flipping bits on the way.
+     * Note src and dst may be the same array.
+     *
+     * @return How many bytes are kept.
+     */
+    private int corrupt(byte[] src, int offset, int length, byte[] dst) {
+        int n = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (chance(profile.dropProbability)) {
+                stats.drops++;
+                continue;
+            }
+
+            byte b = src[offset + i];
+            if (chance(profile.bitErrorRate * 8)) {
+                stats.bitErrors++;
+                b ^= (byte) (1 << random.nextInt(8));
+            }
+            dst[n++] = b;
+        }
+
+        return n;
+    }
+
+    private boolean chance(double probability) {
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    private void fault() {
+        answerFaulted = true;
+        if (faultAt < 0)
+            faultAt = System.nanoTime();
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
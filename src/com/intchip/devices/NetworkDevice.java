@@ -0,0 +1,340 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Talk to a serial port exported by a serial-over-IP server, either as a
+ * raw TCP stream ("tcp://host:port") or with the Telnet Com Port Control
+ * protocol of RFC 2217 ("rfc2217://host:port"). Only the latter can set
+ * the baud rate and pulse DTR/RTS to reset the board.
+ *
+ * The bytes given to send() are coalesced and only written out when the
+ * response is waited for, so each STK500 command leaves in one TCP segment.
+ */
+public class NetworkDevice
+        implements SerialDeviceInterface {
+
+    private static final int OPEN_PORT_TIMEOUT = 1000;
+    private static final int MAX_RECV_TIMEOUT = 1000;
+    private static final int MAX_DRAIN_TIMEOUT = 250;
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final boolean rfc2217;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private TelnetCodec codec;
+
+    private ByteBuffer tx = ByteBuffer.allocateDirect(1024);
+    private final ByteBuffer rx = ByteBuffer.allocateDirect(4096);
+    private final byte[] data = new byte[4096];
+    private int dataPos;
+    private int dataLength;
+
+    /**
+     * @param name The url of the remote port, "tcp://host:port"
+     *             or "rfc2217://host:port".
+     */
+    public NetworkDevice(String name) {
+        URI uri = URI.create(name);
+
+        this.name = name;
+        this.host = uri.getHost();
+        this.port = uri.getPort();
+        this.rfc2217 = "rfc2217".equalsIgnoreCase(uri.getScheme());
+
+        if (host == null || port < 0 ||
+                !rfc2217 && !"tcp".equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Invalid network port " + name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int open() {
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(host, port), OPEN_PORT_TIMEOUT);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+
+            tx.clear();
+            rx.clear();
+            dataPos = dataLength = 0;
+
+            if (rfc2217) {
+                codec = new TelnetCodec(new TelnetCodec.Listener() {
+                    @Override
+                    public void negotiate(int verb, int option) {
+                        refuse(verb, option);
+                    }
+
+                    @Override
+                    public void subnegotiate(byte[] data) {
+                        // Acknowledges of the com port commands, nothing to do
+                    }
+                });
+
+                reserve(16);
+                TelnetCodec.negotiation(tx, TelnetCodec.WILL, TelnetCodec.OPT_COM_PORT);
+                TelnetCodec.negotiation(tx, TelnetCodec.WILL, TelnetCodec.OPT_BINARY);
+                TelnetCodec.negotiation(tx, TelnetCodec.DO, TelnetCodec.OPT_BINARY);
+                TelnetCodec.negotiation(tx, TelnetCodec.DO, TelnetCodec.OPT_SGA);
+
+                // Clear the DTR and RTS to unload the RESET capacitor
+                control(TelnetCodec.CONTROL_DTR_OFF);
+                control(TelnetCodec.CONTROL_RTS_OFF);
+                flush();
+
+                Thread.sleep(250);
+
+                // Set DTR and RTS back to high
+                control(TelnetCodec.CONTROL_DTR_ON);
+                control(TelnetCodec.CONTROL_RTS_ON);
+                flush();
+
+                Thread.sleep(50);
+            }
+
+        } catch (Exception e) {
+            System.err.println("Cannot connect to " + name + ": " + e.getMessage());
+            closeChannel();
+            return -1;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        if (channel == null)
+            return;
+
+        if (rfc2217) {
+            control(TelnetCodec.CONTROL_DTR_OFF);
+            control(TelnetCodec.CONTROL_RTS_OFF);
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        closeChannel();
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        if (channel == null)
+            return -1;
+        if (!rfc2217)
+            return 0;   // fixed by the server
+
+        reserve(48);
+        TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT,
+                (byte) TelnetCodec.COM_SET_BAUDRATE,
+                (byte) (baud >> 24), (byte) (baud >> 16), (byte) (baud >> 8), (byte) baud);
+        TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT,
+                (byte) TelnetCodec.COM_SET_DATASIZE, (byte) 8);
+        TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT,
+                (byte) TelnetCodec.COM_SET_PARITY, (byte) 1);       // NONE
+        TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT,
+                (byte) TelnetCodec.COM_SET_STOPSIZE, (byte) 1);     // 1 stop bit
+
+        try {
+            flush();
+        } catch (IOException e) {
+            return -1;
+        }
+        return 0;
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        if (channel == null)
+            return -1;
+
+        // Worst case every byte is an IAC and must be doubled
+        reserve(rfc2217 ? size * 2 : size);
+        if (rfc2217)
+            TelnetCodec.escape(buf, 0, size, tx);
+        else
+            tx.put(buf, 0, size);
+
+        return size;
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        int nr = 0;
+        try {
+            flush();
+
+            long deadline = System.currentTimeMillis() + MAX_RECV_TIMEOUT;
+
+            while (nr < size) {
+                if (dataPos == dataLength && fill(deadline) < 0)
+                    return -1;
+                if (dataPos == dataLength)
+                    break;      // timeout
+
+                int n = Math.min(size - nr, dataLength - dataPos);
+                System.arraycopy(data, dataPos, buf, nr, n);
+                dataPos += n;
+                nr += n;
+            }
+        } catch (Exception e) {
+            System.err.println("recv error!");
+            return -1;
+        }
+        return nr;
+    }
+
+    @Override
+    public int drain() {
+        try {
+            flush();
+
+            dataPos = dataLength = 0;
+            long deadline = System.currentTimeMillis() + MAX_DRAIN_TIMEOUT;
+
+            // Wait a while for the first bytes, then read all available
+            while (fill(deadline) > 0) {
+                dataPos = dataLength = 0;
+                deadline = System.currentTimeMillis();
+            }
+
+            dataPos = dataLength = 0;
+        } catch (Exception e) {
+            System.err.println("drain error!");
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Read the socket until some data bytes are decoded, or the deadline passes.
+     *
+     * @return How many data bytes are decoded, -1 if the connection is closed.
+     */
+    private int fill(long deadline) throws IOException {
+        dataPos = dataLength = 0;
+
+        while (true) {
+            rx.clear();
+            int n = channel.read(rx);
+            if (n < 0)
+                return -1;
+
+            if (n > 0) {
+                rx.flip();
+                if (rfc2217) {
+                    dataLength = codec.decode(rx, data, 0);
+                    // Answers to the server's negotiation
+                    flush();
+                } else {
+                    rx.get(data, 0, n);
+                    dataLength = n;
+                }
+
+                if (dataLength > 0)
+                    return dataLength;
+                continue;
+            }
+
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0)
+                return 0;
+
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Write all the coalesced bytes to the socket.
+     */
+    private void flush() throws IOException {
+        tx.flip();
+
+        try {
+            while (tx.hasRemaining()) {
+                if (channel.write(tx) == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    selector.select(MAX_RECV_TIMEOUT);
+                    selector.selectedKeys().clear();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } finally {
+            tx.compact();
+        }
+    }
+
+    /**
+     * Make sure tx has room for size more bytes.
+     */
+    private void reserve(int size) {
+        if (tx.remaining() >= size)
+            return;
+
+        ByteBuffer bigger = ByteBuffer.allocateDirect(
+                Math.max(tx.capacity() * 2, tx.position() + size));
+        tx.flip();
+        bigger.put(tx);
+        tx = bigger;
+    }
+
+    private void control(int value) {
+        reserve(16);
+        TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT,
+                (byte) TelnetCodec.COM_SET_CONTROL, (byte) value);
+    }
+
+    /**
+     * Refuse every option we have not asked for.
+     */
+    private void refuse(int verb, int option) {
+        if (option == TelnetCodec.OPT_COM_PORT ||
+                option == TelnetCodec.OPT_BINARY ||
+                option == TelnetCodec.OPT_SGA)
+            return;
+
+        reserve(3);
+        if (verb == TelnetCodec.DO)
+            TelnetCodec.negotiation(tx, TelnetCodec.WONT, option);
+        else if (verb == TelnetCodec.WILL)
+            TelnetCodec.negotiation(tx, TelnetCodec.DONT, option);
+    }
+
+    private void closeChannel() {
+        try {
+            if (selector != null)
+                selector.close();
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+        selector = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A decorator of any serial device, which records every call with its
+ * data and nanosecond timing into a SerialTrace, to be played back later
+ * by ReplayDevice.
+ *
+ * The trace is flushed when the device is closed, the output stream is
+ * still owned by the caller.
+ */
+public class RecordingDevice
+        implements SerialDeviceInterface {
+
+    private final SerialDeviceInterface device;
+    private DataOutputStream out;
+    private long last;
+
+    public RecordingDevice(SerialDeviceInterface device, OutputStream os) {
+        this.device = device;
+        this.out = new DataOutputStream(new BufferedOutputStream(os));
+
+        try {
+            SerialTrace.writeHeader(out, device.getName());
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public int open() {
+        long start = System.nanoTime();
+        int ret = device.open();
+        record(SerialTrace.OP_OPEN, start, 0, ret, null, 0);
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        long start = System.nanoTime();
+        device.close();
+        record(SerialTrace.OP_CLOSE, start, 0, 0, null, 0);
+
+        try {
+            if (out != null)
+                out.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        long start = System.nanoTime();
+        int ret = device.setspeed(baud);
+        record(SerialTrace.OP_SETSPEED, start, baud, ret, null, 0);
+        return ret;
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        long start = System.nanoTime();
+        int ret = device.send(buf, size);
+        record(SerialTrace.OP_SEND, start, size, ret, buf, size);
+        return ret;
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        long start = System.nanoTime();
+        int ret = device.recv(buf, size);
+        record(SerialTrace.OP_RECV, start, size, ret, buf, ret > 0 ? ret : 0);
+        return ret;
+    }
+
+    @Override
+    public int drain() {
+        long start = System.nanoTime();
+        int ret = device.drain();
+        record(SerialTrace.OP_DRAIN, start, 0, ret, null, 0);
+        return ret;
+    }
+
+    private void record(byte op, long start, long arg, int result, byte[] data, int length) {
+        long end = System.nanoTime();
+        if (out == null)
+            return;
+
+        try {
+            SerialTrace.writeEvent(out, op, last == 0 ? 0 : start - last,
+                    end - start, arg, result, data, length);
+            last = start;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void failed(IOException e) {
+        System.err.println(device.getName() + ": RecordingDevice: stop recording, " + e.getMessage());
+        out = null;
+    }
+}
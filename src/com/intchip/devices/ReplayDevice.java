@@ -0,0 +1,172 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Play back a SerialTrace recorded by RecordingDevice.
+ *
+ * Every call must match the next recorded one, i.e. the same operation,
+ * the same bytes sent and the same size asked, otherwise the replay is
+ * marked as diverged and the call fails. Each call takes its recorded
+ * duration multiplied by the time scale, a scale of 0 replays as fast as
+ * possible.
+ */
+public class ReplayDevice
+        implements SerialDeviceInterface {
+
+    private static final long SPIN_NANOS = 100000L;
+
+    private final SerialTrace trace;
+    private final List<SerialTrace.Event> events;
+    private final double timescale;
+
+    private int next;
+    private long deviceNanos;
+    private long firstStart;
+    private long lastEnd;
+    private String divergence;
+
+    public ReplayDevice(SerialTrace trace, double timescale) {
+        this.trace = trace;
+        this.events = trace.getEvents();
+        this.timescale = timescale;
+    }
+
+    /**
+     * @return The nanoseconds spent in replayed device calls.
+     */
+    public long getDeviceNanos() {
+        return deviceNanos;
+    }
+
+    /**
+     * @return The nanoseconds from the start of the first replayed call to
+     *          the end of the last one, the same span as
+     *          SerialTrace.elapsedNanos() of the recording.
+     */
+    public long getElapsedNanos() {
+        return lastEnd - firstStart;
+    }
+
+    /**
+     * @return A description of the first mismatch with the trace,
+     *          or null if the replay follows the trace so far.
+     */
+    public String getDivergence() {
+        return divergence;
+    }
+
+    /**
+     * @return true if all the recorded calls have been replayed.
+     */
+    public boolean isComplete() {
+        return divergence == null && next == events.size();
+    }
+
+    @Override
+    public String getName() {
+        return trace.getName();
+    }
+
+    @Override
+    public int open() {
+        SerialTrace.Event ev = expect(SerialTrace.OP_OPEN, 0);
+        return ev == null ? -1 : replay(ev);
+    }
+
+    @Override
+    public void close() {
+        SerialTrace.Event ev = expect(SerialTrace.OP_CLOSE, 0);
+        if (ev != null)
+            replay(ev);
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        SerialTrace.Event ev = expect(SerialTrace.OP_SETSPEED, baud);
+        return ev == null ? -1 : replay(ev);
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        SerialTrace.Event ev = expect(SerialTrace.OP_SEND, size);
+        if (ev == null)
+            return -1;
+
+        if (!Arrays.equals(ev.data, Arrays.copyOf(buf, size))) {
+            diverge(String.format("send data differs at event %d", next - 1));
+            return -1;
+        }
+
+        return replay(ev);
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        SerialTrace.Event ev = expect(SerialTrace.OP_RECV, size);
+        if (ev == null)
+            return -1;
+
+        System.arraycopy(ev.data, 0, buf, 0, ev.data.length);
+        return replay(ev);
+    }
+
+    @Override
+    public int drain() {
+        SerialTrace.Event ev = expect(SerialTrace.OP_DRAIN, 0);
+        return ev == null ? -1 : replay(ev);
+    }
+
+    /**
+     * Take the next recorded event, if it matches the current call.
+     */
+    private SerialTrace.Event expect(byte op, long arg) {
+        if (divergence != null)
+            return null;
+
+        if (next == events.size()) {
+            diverge(String.format("unexpected '%c' after the end of trace", op));
+            return null;
+        }
+
+        SerialTrace.Event ev = events.get(next++);
+        if (ev.op != op || ev.arg != arg) {
+            diverge(String.format("event %d: expected '%c' (%d), got '%c' (%d)",
+                    next - 1, ev.op, ev.arg, op, arg));
+            return null;
+        }
+
+        return ev;
+    }
+
+    /**
+     * Spend the scaled duration of the event, and return its result.
+     */
+    private int replay(SerialTrace.Event ev) {
+        long start = System.nanoTime();
+        if (lastEnd == 0)
+            firstStart = start;
+        long deadline = start + (long) (ev.duration * timescale);
+
+        // Sleeping is too coarse for the short calls, so sleep for the
+        // most part and spin for the last microseconds.
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            if (left > SPIN_NANOS)
+                LockSupport.parkNanos(left - SPIN_NANOS);
+        }
+
+        lastEnd = System.nanoTime();
+        deviceNanos += lastEnd - start;
+        return ev.result;
+    }
+
+    private void diverge(String reason) {
+        divergence = reason;
+        System.err.println(trace.getName() + ": ReplayDevice: diverged, " + reason);
+    }
+}
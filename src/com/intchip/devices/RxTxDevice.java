@@ -6,6 +6,10 @@ import gnu.io.SerialPort;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
 
 /**
  * Using RxTx to handle the serial port communication.
@@ -19,10 +23,51 @@ public class RxTxDevice
 
     private SerialPort port;
     private String name;
+    private int recvTimeout;
+    private int drainTimeout;
 
     public RxTxDevice(String name) {
         this.name = name;
         this.port = null;
+        this.recvTimeout = MAX_RECV_TIMEOUT;
+        this.drainTimeout = MAX_DRAIN_TIMEOUT;
+    }
+
+    /**
+     * Set the timeouts of recv() and drain(), in milliseconds.
+     * Shorter timeouts make probing a port without any board faster.
+     */
+    public void setTimeouts(int recvTimeout, int drainTimeout) {
+        this.recvTimeout = recvTimeout;
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * List the names of the serial ports known by RxTx.
+     *
+     * @param prefixes Only the ports starting with one of the prefixes,
+     *                 e.g. "/dev/ttyUSB", or all ports if none given.
+     * @return The port names.
+     */
+    public static List<String> listPorts(String... prefixes) {
+        List<String> ports = new ArrayList<>();
+
+        Enumeration<?> ids = CommPortIdentifier.getPortIdentifiers();
+        while (ids.hasMoreElements()) {
+            CommPortIdentifier id = (CommPortIdentifier) ids.nextElement();
+            if (id.getPortType() != CommPortIdentifier.PORT_SERIAL)
+                continue;
+
+            String portName = id.getName();
+            boolean match = prefixes.length == 0;
+            for (String prefix : prefixes)
+                match |= portName.startsWith(prefix);
+            if (match)
+                ports.add(portName);
+        }
+
+        Collections.sort(ports);
+        return ports;
     }
 
     @Override
@@ -65,10 +110,14 @@ public class RxTxDevice
 
     @Override
     public void close() {
+        if (port == null)
+            return;
+
         port.setDTR(false);
         port.setRTS(false);
 
         port.close();
+        port = null;
     }
 
     @Override
@@ -103,7 +152,7 @@ public class RxTxDevice
     public int recv(byte[] buf, int size) {
         int nr = 0;
         try {
-            port.enableReceiveTimeout(MAX_RECV_TIMEOUT);
+            port.enableReceiveTimeout(recvTimeout);
 
             InputStream in = port.getInputStream();
 
@@ -123,7 +172,7 @@ public class RxTxDevice
     @Override
     public int drain() {
         try {
-            port.enableReceiveTimeout(MAX_DRAIN_TIMEOUT);
+            port.enableReceiveTimeout(drainTimeout);
 
             InputStream in = port.getInputStream();
 
@@ -0,0 +1,171 @@
+package com.intchip.devices;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary trace format shared by RecordingDevice and ReplayDevice.
+ *
+ * A trace starts with the magic "STKT", a version byte and the device name,
+ * followed by one record for each call on the serial device:
+ * <pre>
+ *   op        1 byte, one of the OP_* constants
+ *   start     varint, nanoseconds since the start of the previous call
+ *   duration  varint, nanoseconds spent in the call
+ *   arg       varint, the baud rate or the size argument
+ *   result    zigzag varint, the value returned by the call
+ *   data      varint length and the bytes, for send and recv only
+ * </pre>
+ */
+public class SerialTrace {
+
+    static final int MAGIC = 0x53544b54;
+    static final int VERSION = 1;
+
+    public static final byte OP_OPEN     = 'O';
+    public static final byte OP_CLOSE    = 'C';
+    public static final byte OP_SETSPEED = 'S';
+    public static final byte OP_SEND     = 'W';
+    public static final byte OP_RECV     = 'R';
+    public static final byte OP_DRAIN    = 'D';
+
+    /**
+     * A single call on the serial device.
+     */
+    public static class Event {
+        public final byte op;
+        /** Nanoseconds since the start of the trace. */
+        public final long start;
+        public final long duration;
+        public final long arg;
+        public final int result;
+        public final byte[] data;
+
+        public Event(byte op, long start, long duration, long arg, int result, byte[] data) {
+            this.op = op;
+            this.start = start;
+            this.duration = duration;
+            this.arg = arg;
+            this.result = result;
+            this.data = data;
+        }
+    }
+
+    private final String name;
+    private final List<Event> events;
+
+    public SerialTrace(String name, List<Event> events) {
+        this.name = name;
+        this.events = events;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return The nanoseconds from the start of the first call
+     *          to the end of the last one.
+     */
+    public long elapsedNanos() {
+        if (events.isEmpty())
+            return 0;
+        Event last = events.get(events.size() - 1);
+        return last.start + last.duration - events.get(0).start;
+    }
+
+    /**
+     * @return The nanoseconds spent inside the device calls.
+     */
+    public long deviceNanos() {
+        long total = 0;
+        for (Event ev : events)
+            total += ev.duration;
+        return total;
+    }
+
+    /**
+     * Read a whole trace from the stream.
+     */
+    public static SerialTrace read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a serial trace");
+        if (in.readUnsignedByte() != VERSION)
+            throw new IOException("unsupported serial trace version");
+
+        String name = in.readUTF();
+        List<Event> events = new ArrayList<>();
+        long time = 0;
+
+        while (true) {
+            int op = in.read();
+            if (op < 0)
+                break;
+
+            time += readVarLong(in);
+            long duration = readVarLong(in);
+            long arg = readVarLong(in);
+            long zigzag = readVarLong(in);
+            int result = (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+
+            byte[] data = null;
+            if (op == OP_SEND || op == OP_RECV) {
+                data = new byte[(int) readVarLong(in)];
+                in.readFully(data);
+            }
+
+            events.add(new Event((byte) op, time, duration, arg, result, data));
+        }
+
+        return new SerialTrace(name, events);
+    }
+
+    static void writeHeader(DataOutputStream out, String name) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(name);
+    }
+
+    static void writeEvent(DataOutputStream out, byte op, long delta, long duration,
+                           long arg, int result, byte[] data, int length) throws IOException {
+        out.writeByte(op);
+        writeVarLong(out, delta);
+        writeVarLong(out, duration);
+        writeVarLong(out, arg);
+        writeVarLong(out, ((long) result << 1) ^ (result >> 31));
+
+        if (op == OP_SEND || op == OP_RECV) {
+            writeVarLong(out, length);
+            out.write(data, 0, length);
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("truncated serial trace");
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("malformed varint in serial trace");
+    }
+}
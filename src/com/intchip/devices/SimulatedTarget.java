@@ -0,0 +1,716 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process simulation of an optiboot based target, used to exercise
+ * the STK500 protocol without any hardware. The messages starting with
+ * 0x1b are taken as STK500v2, as the wiring bootloader answers them.
+ *
+ * The simulator can be used directly as a serial device, or as a byte
+ * stream engine through feed() and poll(), e.g. behind a socket or a pty.
+ *
+ * When the baud rate is positive, the simulator models the wire time of
+ * every byte, the flash programming time of each page and a fixed latency
+ * per response (e.g. the latency timer of an usb-serial adapter), and
+ * blocks the caller in real time. With baud rate 0, all answers are
+ * available immediately.
+ *
+ * The waits use a lock rather than the monitor of the simulator, so that
+ * a virtual thread waiting for an answer releases its carrier thread.
+ */
+public class SimulatedTarget
+        implements SerialDeviceInterface {
+
+    /**** STK constants understood by the simulator ****/
+    static final byte Resp_STK_OK       = 0x10;
+    static final byte Resp_STK_INSYNC   = 0x14;
+    static final byte Resp_STK_NOSYNC   = 0x15;
+    static final byte Sync_CRC_EOP      = 0x20;
+
+    static final byte Cmnd_STK_GET_SYNC         = 0x30;
+    static final byte Cmnd_STK_GET_SIGN_ON      = 0x31;
+    static final byte Cmnd_STK_SET_PARAMETER    = 0x40;
+    static final byte Cmnd_STK_GET_PARAMETER    = 0x41;
+    static final byte Cmnd_STK_SET_DEVICE       = 0x42;
+    static final byte Cmnd_STK_SET_DEVICE_EXT   = 0x45;
+    static final byte Cmnd_STK_CHIP_ERASE       = 0x52;
+    static final byte Cmnd_STK_LOAD_ADDRESS     = 0x55;
+    static final byte Cmnd_STK_UNIVERSAL        = 0x56;
+    static final byte Cmnd_STK_PROG_PAGE        = 0x64;
+    static final byte Cmnd_STK_READ_PAGE        = 0x74;
+    static final byte Cmnd_STK_READ_SIGN        = 0x75;
+
+    static final byte AVR_OP_LOAD_EXT_ADDR      = 0x4d;
+
+    /**** STK500v2 constants understood by the simulator ****/
+    static final byte MESSAGE_START             = 0x1b;
+    static final byte TOKEN                     = 0x0e;
+    static final int  MAX_BODY_SIZE             = 275;
+
+    static final byte CMD_SIGN_ON               = 0x01;
+    static final byte CMD_LOAD_ADDRESS          = 0x06;
+    static final byte CMD_CHIP_ERASE_ISP        = 0x12;
+    static final byte CMD_PROGRAM_FLASH_ISP     = 0x13;
+    static final byte CMD_READ_FLASH_ISP        = 0x14;
+    static final byte CMD_PROGRAM_EEPROM_ISP    = 0x15;
+    static final byte CMD_READ_EEPROM_ISP       = 0x16;
+    static final byte CMD_READ_SIGNATURE_ISP    = 0x1b;
+
+    static final byte STATUS_CMD_OK             = 0x00;
+    static final byte STATUS_CMD_FAILED         = (byte) 0xc0;
+    static final byte STATUS_CKSUM_ERROR        = (byte) 0xc1;
+    static final byte ANSWER_CKSUM_ERROR        = (byte) 0xb0;
+
+    private static final int DEFAULT_RECV_TIMEOUT = 1000;
+    private static final int DEFAULT_DRAIN_TIMEOUT = 250;
+    private static final int DEFAULT_PAGE_WRITE_MICROS = 4500;
+
+    /**
+     * A block of response bytes, which can be read after readyAt.
+     */
+    private static class Chunk {
+        final byte[] data;
+        final long readyAt;
+        int pos;
+
+        Chunk(byte[] data, long readyAt) {
+            this.data = data;
+            this.readyAt = readyAt;
+        }
+    }
+
+    private final String name;
+    private final byte[] flash;
+    private final byte[] eeprom;
+    private final byte[] signature;
+    private final int pagesize;
+
+    private long baud;
+    private long latencyNanos;
+    private long pageWriteNanos;
+    private int recvTimeout;
+    private int drainTimeout;
+    private boolean chipEraseSupported;
+
+    private byte[] input = new byte[512];
+    private int inputLength;
+    private final ArrayDeque<Chunk> output = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition received = lock.newCondition();
+    private long rxLineFree;
+    private long txLineFree;
+
+    private int wordAddress;
+    private int extAddress;
+    /** The STK500v2 address, in word for flash and in byte for eeprom. */
+    private int v2Address;
+    /** The flash page the wiring bootloader erases on the next PROGRAM_FLASH. */
+    private int eraseAddress;
+    private boolean opened;
+
+    /**
+     * Simulate an ATmega328P with optiboot, i.e. an Arduino UNO.
+     */
+    public SimulatedTarget(String name) {
+        this(name, 32 * 1024, 1024, 128, new byte[] {0x1e, (byte) 0x95, 0x0f});
+    }
+
+    /**
+     * @param name  The name of the simulated serial device.
+     * @param flashsize The flash size in byte.
+     * @param eepromsize The eeprom size in byte.
+     * @param pagesize The flash page size in byte.
+     * @param signature The 3 bytes device signature.
+     */
+    public SimulatedTarget(String name, int flashsize, int eepromsize,
+                           int pagesize, byte[] signature) {
+        this.name = name;
+        this.flash = new byte[flashsize];
+        this.eeprom = new byte[eepromsize];
+        this.pagesize = pagesize;
+        this.signature = signature.clone();
+        this.baud = 0;
+        this.latencyNanos = 0;
+        this.pageWriteNanos = DEFAULT_PAGE_WRITE_MICROS * 1000L;
+        this.recvTimeout = DEFAULT_RECV_TIMEOUT;
+        this.drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+        this.chipEraseSupported = false;
+
+        Arrays.fill(flash, (byte) 0xff);
+        Arrays.fill(eeprom, (byte) 0xff);
+    }
+
+    /**
+     * Set the latency added to each response, in microseconds.
+     */
+    public void setLatency(int micros) {
+        this.latencyNanos = micros * 1000L;
+    }
+
+    /**
+     * Set the time to program a flash page, in microseconds.
+     */
+    public void setPageWriteTime(int micros) {
+        this.pageWriteNanos = micros * 1000L;
+    }
+
+    /**
+     * Set the timeouts (in milliseconds) of recv() and drain() in real-time mode.
+     */
+    public void setTimeouts(int recvTimeout, int drainTimeout) {
+        this.recvTimeout = recvTimeout;
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Whether Cmnd_STK_CHIP_ERASE really erases the flash. optiboot just
+     * acknowledges the command and erases each page before writing it.
+     */
+    public void setChipEraseSupported(boolean supported) {
+        this.chipEraseSupported = supported;
+    }
+
+    /**
+     * @return The simulated flash memory, not a copy.
+     */
+    public byte[] getFlash() {
+        return flash;
+    }
+
+    /**
+     * @return The simulated eeprom memory, not a copy.
+     */
+    public byte[] getEeprom() {
+        return eeprom;
+    }
+
+    /**
+     * Simulate a reset of the target, all pending input and output is lost.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            inputLength = 0;
+            output.clear();
+            wordAddress = 0;
+            extAddress = 0;
+            v2Address = 0;
+            eraseAddress = 0;
+            rxLineFree = 0;
+            txLineFree = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int open() {
+        reset();
+        opened = true;
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        opened = false;
+        reset();
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        lock.lock();
+        try {
+            this.baud = baud;
+        } finally {
+            lock.unlock();
+        }
+        return 0;
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        if (!opened)
+            return -1;
+        feed(buf, 0, size);
+        return size;
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        if (!opened)
+            return -1;
+
+        long deadline = System.nanoTime() + recvTimeout * 1000000L;
+        int nr = 0;
+
+        lock.lock();
+        try {
+            while (nr < size) {
+                nr += take(buf, nr, size - nr);
+                if (nr == size || !await(deadline))
+                    break;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return nr;
+    }
+
+    @Override
+    public int drain() {
+        if (!opened)
+            return -1;
+
+        long deadline = System.nanoTime() + drainTimeout * 1000000L;
+        byte[] buf = new byte[128];
+
+        lock.lock();
+        try {
+            while (true) {
+                while (take(buf, 0, buf.length) > 0)
+                    ;
+                if (!await(deadline))
+                    break;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Push bytes sent by the host into the simulated target.
+     */
+    public void feed(byte[] buf, int offset, int length) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+
+            if (inputLength + length > input.length)
+                input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + length));
+            System.arraycopy(buf, offset, input, inputLength, length);
+            inputLength += length;
+
+            rxLineFree = Math.max(now, rxLineFree) + wireTime(length);
+
+            int consumed;
+            while ((consumed = process()) > 0) {
+                System.arraycopy(input, consumed, input, 0, inputLength - consumed);
+                inputLength -= consumed;
+            }
+
+            received.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the response bytes which have arrived at the host side,
+     * without blocking.
+     *
+     * @return How many bytes have been copied into buf.
+     */
+    public int poll(byte[] buf, int size) {
+        lock.lock();
+        try {
+            return take(buf, 0, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The time in nanoseconds until the next response byte arrives,
+     *          or -1 if nothing is pending.
+     */
+    public long pending() {
+        lock.lock();
+        try {
+            Chunk chunk = output.peek();
+            if (chunk == null)
+                return -1;
+            return Math.max(0, chunk.readyAt - System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy the ready output into buf.
+     */
+    private int take(byte[] buf, int offset, int size) {
+        long now = System.nanoTime();
+        int nr = 0;
+
+        while (nr < size && !output.isEmpty()) {
+            Chunk chunk = output.peek();
+            if (baud > 0 && chunk.readyAt > now)
+                break;
+
+            int n = Math.min(size - nr, chunk.data.length - chunk.pos);
+            System.arraycopy(chunk.data, chunk.pos, buf, offset + nr, n);
+            chunk.pos += n;
+            nr += n;
+
+            if (chunk.pos == chunk.data.length)
+                output.poll();
+        }
+
+        return nr;
+    }
+
+    /**
+     * Wait until the next chunk becomes ready or the deadline passes.
+     *
+     * @return false if the deadline has passed.
+     */
+    private boolean await(long deadline) {
+        long now = System.nanoTime();
+        if (now >= deadline || baud <= 0 && output.isEmpty())
+            return false;
+
+        Chunk chunk = output.peek();
+        long until = chunk != null ? Math.min(chunk.readyAt, deadline) : deadline;
+
+        try {
+            received.awaitNanos(Math.max(until - now, 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    private long wireTime(int bytes) {
+        // 8N1 needs 10 bits for each byte
+        return baud > 0 ? bytes * 10000000000L / baud : 0;
+    }
+
+    /**
+     * Queue a response, which is sent after the command is completely
+     * received and processed.
+     */
+    private void respond(long processing, byte... data) {
+        long start = Math.max(rxLineFree + processing + latencyNanos, txLineFree);
+        txLineFree = start + wireTime(data.length);
+        output.add(new Chunk(data, txLineFree));
+    }
+
+    /**
+     * The expected length of the command at the head of the input,
+     * or -1 if more bytes are needed to decide.
+     */
+    private int frameLength() {
+        switch (input[0]) {
+            case Cmnd_STK_GET_PARAMETER:
+                return 3;
+            case Cmnd_STK_SET_PARAMETER:
+            case Cmnd_STK_LOAD_ADDRESS:
+                return 4;
+            case Cmnd_STK_READ_PAGE:
+                return 5;
+            case Cmnd_STK_UNIVERSAL:
+                return 6;
+            case Cmnd_STK_SET_DEVICE_EXT:
+                return 7;
+            case Cmnd_STK_SET_DEVICE:
+                return 22;
+            case Cmnd_STK_PROG_PAGE:
+                if (inputLength < 3)
+                    return -1;
+                return 5 + (((input[1] & 0xff) << 8) | (input[2] & 0xff));
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Process one command at the head of the input.
+     *
+     * @return How many bytes consumed, 0 if the command is incomplete.
+     */
+    private int process() {
+        if (inputLength == 0)
+            return 0;
+
+        if (input[0] == MESSAGE_START)
+            return processV2();
+
+        int length = frameLength();
+        if (length < 0 || inputLength < length)
+            return 0;
+
+        if (input[length - 1] != Sync_CRC_EOP) {
+            // Lost the framing, discard everything received so far.
+            respond(0, Resp_STK_NOSYNC);
+            return inputLength;
+        }
+
+        switch (input[0]) {
+            case Cmnd_STK_GET_PARAMETER:
+                respond(0, Resp_STK_INSYNC, parameter(input[1]), Resp_STK_OK);
+                break;
+
+            case Cmnd_STK_READ_SIGN:
+                respond(0, Resp_STK_INSYNC, signature[0], signature[1], signature[2], Resp_STK_OK);
+                break;
+
+            case Cmnd_STK_LOAD_ADDRESS:
+                wordAddress = (input[1] & 0xff) | ((input[2] & 0xff) << 8);
+                respond(0, Resp_STK_INSYNC, Resp_STK_OK);
+                break;
+
+            case Cmnd_STK_UNIVERSAL:
+                if (input[1] == AVR_OP_LOAD_EXT_ADDR)
+                    extAddress = input[3] & 0xff;
+                respond(0, Resp_STK_INSYNC, (byte) 0, Resp_STK_OK);
+                break;
+
+            case Cmnd_STK_CHIP_ERASE:
+                if (chipEraseSupported) {
+                    Arrays.fill(flash, (byte) 0xff);
+                    respond(pageWriteNanos * 2, Resp_STK_INSYNC, Resp_STK_OK);
+                } else {
+                    respond(0, Resp_STK_INSYNC, Resp_STK_OK);
+                }
+                break;
+
+            case Cmnd_STK_PROG_PAGE:
+                progPage(length - 5);
+                break;
+
+            case Cmnd_STK_READ_PAGE:
+                readPage(((input[1] & 0xff) << 8) | (input[2] & 0xff));
+                break;
+
+            default:
+                // GET_SYNC, ENTER_PROGMODE, etc., and every unknown command
+                // are simply acknowledged, as optiboot does.
+                respond(0, Resp_STK_INSYNC, Resp_STK_OK);
+                break;
+        }
+
+        return length;
+    }
+
+    private byte parameter(byte param) {
+        switch (param & 0xff) {
+            case 0x81:  // STK_SW_MAJOR
+                return 8;
+            case 0x82:  // STK_SW_MINOR
+                return 0;
+            default:
+                return 3;
+        }
+    }
+
+    private void progPage(int blocksize) {
+        if (input[3] == 'E') {
+            // optiboot doubles the eeprom address as well
+            int addr = wordAddress << 1;
+            if (addr + blocksize > eeprom.length) {
+                respond(0, Resp_STK_INSYNC, (byte) 0x11);
+                return;
+            }
+            System.arraycopy(input, 4, eeprom, addr, blocksize);
+            // About 3.4ms for each eeprom byte on a real device
+            respond(blocksize * pageWriteNanos * 3 / 4, Resp_STK_INSYNC, Resp_STK_OK);
+            return;
+        }
+
+        int addr = (extAddress << 17) | (wordAddress << 1);
+        if (addr + blocksize > flash.length) {
+            respond(0, Resp_STK_INSYNC, (byte) 0x11);
+            return;
+        }
+
+        // Erase-on-write, like optiboot
+        if (addr % pagesize == 0)
+            Arrays.fill(flash, addr, Math.min(addr + pagesize, flash.length), (byte) 0xff);
+        System.arraycopy(input, 4, flash, addr, blocksize);
+        respond(pageWriteNanos, Resp_STK_INSYNC, Resp_STK_OK);
+    }
+
+    private void readPage(int blocksize) {
+        byte[] mem;
+        int addr;
+
+        if (input[3] == 'E') {
+            mem = eeprom;
+            addr = wordAddress << 1;
+        } else {
+            mem = flash;
+            addr = (extAddress << 17) | (wordAddress << 1);
+        }
+
+        if (addr + blocksize > mem.length) {
+            respond(0, Resp_STK_INSYNC, (byte) 0x11);
+            return;
+        }
+
+        byte[] resp = new byte[blocksize + 2];
+        resp[0] = Resp_STK_INSYNC;
+        System.arraycopy(mem, addr, resp, 1, blocksize);
+        resp[blocksize + 1] = Resp_STK_OK;
+        respond(0, resp);
+    }
+
+    /**
+     * Queue a STK500v2 answer with the sequence number of the command.
+     */
+    private void respondV2(long processing, byte seq, byte... body) {
+        byte[] resp = new byte[body.length + 6];
+        resp[0] = MESSAGE_START;
+        resp[1] = seq;
+        resp[2] = (byte) (body.length >> 8);
+        resp[3] = (byte) body.length;
+        resp[4] = TOKEN;
+        System.arraycopy(body, 0, resp, 5, body.length);
+
+        byte checksum = 0;
+        for (int i = 0; i < resp.length - 1; i++)
+            checksum ^= resp[i];
+        resp[resp.length - 1] = checksum;
+
+        respond(processing, resp);
+    }
+
+    /**
+     * Process one STK500v2 message at the head of the input.
+     *
+     * @return How many bytes consumed, 0 if the message is incomplete.
+     */
+    private int processV2() {
+        if (inputLength < 5)
+            return 0;
+
+        int size = ((input[2] & 0xff) << 8) | (input[3] & 0xff);
+        if (input[4] != TOKEN || size == 0 || size > MAX_BODY_SIZE) {
+            // Not a message start, look for the next one
+            return 1;
+        }
+        if (inputLength < size + 6)
+            return 0;
+
+        byte seq = input[1];
+        byte checksum = 0;
+        for (int i = 0; i < size + 6; i++)
+            checksum ^= input[i];
+        if (checksum != 0) {
+            respondV2(0, seq, ANSWER_CKSUM_ERROR, STATUS_CKSUM_ERROR);
+            return size + 6;
+        }
+
+        byte cmd = input[5];
+        switch (cmd) {
+            case CMD_SIGN_ON:
+                respondV2(0, seq, cmd, STATUS_CMD_OK, (byte) 8,
+                        (byte) 'A', (byte) 'V', (byte) 'R', (byte) 'I',
+                        (byte) 'S', (byte) 'P', (byte) '_', (byte) '2');
+                break;
+
+            case CMD_LOAD_ADDRESS:
+                v2Address = ((input[6] & 0x7f) << 24) | ((input[7] & 0xff) << 16) |
+                        ((input[8] & 0xff) << 8) | (input[9] & 0xff);
+                respondV2(0, seq, cmd, STATUS_CMD_OK);
+                break;
+
+            case CMD_READ_SIGNATURE_ISP:
+                respondV2(0, seq, cmd, STATUS_CMD_OK, signature[input[9] % 3], STATUS_CMD_OK);
+                break;
+
+            case CMD_CHIP_ERASE_ISP:
+                // The wiring bootloader only rewinds its erase pointer
+                eraseAddress = 0;
+                if (chipEraseSupported) {
+                    Arrays.fill(flash, (byte) 0xff);
+                    respondV2(pageWriteNanos * 2, seq, cmd, STATUS_CMD_OK);
+                } else {
+                    respondV2(0, seq, cmd, STATUS_CMD_OK);
+                }
+                break;
+
+            case CMD_PROGRAM_FLASH_ISP:
+            case CMD_PROGRAM_EEPROM_ISP:
+                programV2(seq, cmd, ((input[6] & 0xff) << 8) | (input[7] & 0xff));
+                break;
+
+            case CMD_READ_FLASH_ISP:
+            case CMD_READ_EEPROM_ISP:
+                readV2(seq, cmd, ((input[6] & 0xff) << 8) | (input[7] & 0xff));
+                break;
+
+            default:
+                // ENTER_PROGMODE_ISP, LEAVE_PROGMODE_ISP, etc.
+                respondV2(0, seq, cmd, STATUS_CMD_OK);
+                break;
+        }
+
+        return size + 6;
+    }
+
+    private void programV2(byte seq, byte cmd, int blocksize) {
+        if (cmd == CMD_PROGRAM_EEPROM_ISP) {
+            int addr = v2Address;
+            if (addr + blocksize > eeprom.length) {
+                respondV2(0, seq, cmd, STATUS_CMD_FAILED);
+                return;
+            }
+            System.arraycopy(input, 15, eeprom, addr, blocksize);
+            v2Address += blocksize;
+            respondV2(blocksize * pageWriteNanos * 3 / 4, seq, cmd, STATUS_CMD_OK);
+            return;
+        }
+
+        int addr = v2Address << 1;
+        if (addr + blocksize > flash.length) {
+            respondV2(0, seq, cmd, STATUS_CMD_FAILED);
+            return;
+        }
+
+        // The wiring bootloader erases the pages in turn, whatever the
+        // loaded address, and programming only clears bits.
+        if (eraseAddress < flash.length) {
+            Arrays.fill(flash, eraseAddress, Math.min(eraseAddress + pagesize, flash.length), (byte) 0xff);
+            eraseAddress += pagesize;
+        }
+        for (int i = 0; i < blocksize; i++)
+            flash[addr + i] &= input[15 + i];
+        v2Address += blocksize / 2;
+        respondV2(pageWriteNanos, seq, cmd, STATUS_CMD_OK);
+    }
+
+    private void readV2(byte seq, byte cmd, int blocksize) {
+        byte[] mem = cmd == CMD_READ_EEPROM_ISP ? eeprom : flash;
+        int addr = cmd == CMD_READ_EEPROM_ISP ? v2Address : v2Address << 1;
+
+        if (addr + blocksize > mem.length) {
+            respondV2(0, seq, cmd, STATUS_CMD_FAILED);
+            return;
+        }
+
+        byte[] body = new byte[blocksize + 3];
+        body[0] = cmd;
+        body[1] = STATUS_CMD_OK;
+        System.arraycopy(mem, addr, body, 2, blocksize);
+        body[blocksize + 2] = STATUS_CMD_OK;
+
+        v2Address += cmd == CMD_READ_EEPROM_ISP ? blocksize : blocksize / 2;
+        respondV2(0, seq, body);
+    }
+}
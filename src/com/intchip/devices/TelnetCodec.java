@@ -0,0 +1,164 @@
+package com.intchip.devices;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A minimal telnet stream codec, enough for the RFC 2217 (Telnet Com Port
+ * Control) protocol used by the serial-over-IP servers.
+ *
+ * The decoder keeps its state between calls, so IAC sequences split over
+ * several network reads are handled correctly.
+ */
+public class TelnetCodec {
+
+    public static final int IAC  = 255;
+    public static final int DONT = 254;
+    public static final int DO   = 253;
+    public static final int WONT = 252;
+    public static final int WILL = 251;
+    public static final int SB   = 250;
+    public static final int SE   = 240;
+
+    public static final int OPT_BINARY   = 0;
+    public static final int OPT_SGA      = 3;
+    public static final int OPT_COM_PORT = 44;
+
+    /**** RFC 2217 com port commands, client to server ****/
+    public static final int COM_SET_BAUDRATE = 1;
+    public static final int COM_SET_DATASIZE = 2;
+    public static final int COM_SET_PARITY   = 3;
+    public static final int COM_SET_STOPSIZE = 4;
+    public static final int COM_SET_CONTROL  = 5;
+    /** The server answers each command with the command code plus 100. */
+    public static final int COM_SERVER_OFFSET = 100;
+
+    /**** RFC 2217 SET-CONTROL values ****/
+    public static final int CONTROL_DTR_ON  = 8;
+    public static final int CONTROL_DTR_OFF = 9;
+    public static final int CONTROL_RTS_ON  = 11;
+    public static final int CONTROL_RTS_OFF = 12;
+
+    /**
+     * Receive the telnet commands found in the stream.
+     */
+    public interface Listener {
+        /**
+         * @param verb One of WILL, WONT, DO and DONT.
+         * @param option The telnet option.
+         */
+        void negotiate(int verb, int option);
+
+        /**
+         * @param data The bytes between IAC SB and IAC SE, unescaped,
+         *             starting with the option.
+         */
+        void subnegotiate(byte[] data);
+    }
+
+    private static final int STATE_DATA   = 0;
+    private static final int STATE_IAC    = 1;
+    private static final int STATE_VERB   = 2;
+    private static final int STATE_SB     = 3;
+    private static final int STATE_SB_IAC = 4;
+
+    private final Listener listener;
+    private final ByteArrayOutputStream sub = new ByteArrayOutputStream();
+    private int state = STATE_DATA;
+    private int verb;
+
+    public TelnetCodec(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decode all the remaining bytes of in, and store the data bytes into out.
+     * Note out must have at least in.remaining() bytes from offset.
+     *
+     * @return How many data bytes have been stored.
+     */
+    public int decode(ByteBuffer in, byte[] out, int offset) {
+        int n = 0;
+
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xff;
+
+            switch (state) {
+                case STATE_DATA:
+                    if (b == IAC)
+                        state = STATE_IAC;
+                    else
+                        out[offset + n++] = (byte) b;
+                    break;
+
+                case STATE_IAC:
+                    if (b == IAC) {
+                        out[offset + n++] = (byte) b;
+                        state = STATE_DATA;
+                    } else if (b >= WILL && b <= DONT) {
+                        verb = b;
+                        state = STATE_VERB;
+                    } else if (b == SB) {
+                        sub.reset();
+                        state = STATE_SB;
+                    } else {
+                        // NOP, GA etc. carry nothing for us
+                        state = STATE_DATA;
+                    }
+                    break;
+
+                case STATE_VERB:
+                    listener.negotiate(verb, b);
+                    state = STATE_DATA;
+                    break;
+
+                case STATE_SB:
+                    if (b == IAC)
+                        state = STATE_SB_IAC;
+                    else
+                        sub.write(b);
+                    break;
+
+                case STATE_SB_IAC:
+                    if (b == SE) {
+                        listener.subnegotiate(sub.toByteArray());
+                        state = STATE_DATA;
+                    } else {
+                        sub.write(b);
+                        state = STATE_SB;
+                    }
+                    break;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Put the data bytes into out, doubling every IAC.
+     * Note out must have at least 2 * length bytes remaining.
+     */
+    public static void escape(byte[] buf, int offset, int length, ByteBuffer out) {
+        for (int i = offset; i < offset + length; i++) {
+            out.put(buf[i]);
+            if ((buf[i] & 0xff) == IAC)
+                out.put(buf[i]);
+        }
+    }
+
+    /**
+     * Put IAC verb option into out.
+     */
+    public static void negotiation(ByteBuffer out, int verb, int option) {
+        out.put((byte) IAC).put((byte) verb).put((byte) option);
+    }
+
+    /**
+     * Put IAC SB option data IAC SE into out.
+     */
+    public static void subnegotiation(ByteBuffer out, int option, byte... data) {
+        out.put((byte) IAC).put((byte) SB).put((byte) option);
+        escape(data, 0, data.length, out);
+        out.put((byte) IAC).put((byte) SE);
+    }
+}
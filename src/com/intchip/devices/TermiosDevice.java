@@ -0,0 +1,219 @@
+package com.intchip.devices;
+
+import com.intchip.SerialDeviceInterface;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Talk to a serial port of Linux directly through its device file,
+ * without RxTx and its polling thread.
+ *
+ * The port is configured with stty(1): raw mode, 8N1, no flow control,
+ * and VMIN=0 VTIME=1, so that a read returns as soon as a byte arrives,
+ * or after 0.1s without any. The bytes go through a FileChannel and
+ * direct buffers, i.e. straight from and to the kernel.
+ *
+ * Java has no ioctl(), so the DTR/RTS reset pulse is made with HUPCL:
+ * the kernel drops the lines when the last handle of the port is closed
+ * and raises them when the port is opened again.
+ */
+public class TermiosDevice
+        implements SerialDeviceInterface {
+
+    private static final int MAX_RECV_TIMEOUT = 1000;
+    private static final int MAX_DRAIN_TIMEOUT = 250;
+    private static final long DEFAULT_BAUD = 115200;
+    private static final int BUFFER_SIZE = 1024;
+
+    private final String name;
+    private int recvTimeout;
+    private int drainTimeout;
+    private long baud;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ByteBuffer txBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer rxBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public TermiosDevice(String name) {
+        this.name = name;
+        this.recvTimeout = MAX_RECV_TIMEOUT;
+        this.drainTimeout = MAX_DRAIN_TIMEOUT;
+        this.baud = DEFAULT_BAUD;
+    }
+
+    /**
+     * Set the timeouts of recv() and drain(), in milliseconds.
+     * The timeouts are rounded up to 0.1s, the unit of VTIME. drain()
+     * returns as soon as the line is quiet for 0.1s, its timeout only
+     * bounds the time spent on a line which never gets quiet.
+     */
+    public void setTimeouts(int recvTimeout, int drainTimeout) {
+        this.recvTimeout = recvTimeout;
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Configure the port with stty.
+     *
+     * @return 0 if success, otherwise -1.
+     */
+    private int stty(long speed) {
+        try {
+            Process stty = new ProcessBuilder("stty", "-F", name, Long.toString(speed),
+                    "raw", "-echo", "min", "0", "time", "1",
+                    "cs8", "-cstopb", "-parenb", "-crtscts", "clocal", "hupcl")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+
+            if (!stty.waitFor(5, TimeUnit.SECONDS)) {
+                stty.destroy();
+                return -1;
+            }
+            return stty.exitValue() == 0 ? 0 : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int open() {
+        // stty opens and closes the port, which leaves DTR and RTS
+        // cleared to unload the RESET capacitor.
+        if (stty(baud) != 0) {
+            System.err.println("Cannot configure " + name);
+            return -1;
+        }
+
+        try {
+            Thread.sleep(250);
+
+            // Opening the port sets DTR and RTS back to high
+            file = new RandomAccessFile(name, "rw");
+            channel = file.getChannel();
+
+            Thread.sleep(50);
+        } catch (Exception e) {
+            close();
+            return -1;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        if (file == null)
+            return;
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        file = null;
+        channel = null;
+    }
+
+    @Override
+    public int setspeed(long baud) {
+        // open() has configured the port at this speed already
+        if (channel != null && baud == this.baud)
+            return 0;
+
+        this.baud = baud;
+        if (channel == null)
+            return 0;
+
+        // The port is held open, so this does not drop DTR
+        return stty(baud);
+    }
+
+    @Override
+    public int send(byte[] buf, int size) {
+        if (txBuf.capacity() < size)
+            txBuf = ByteBuffer.allocateDirect(size);
+
+        try {
+            txBuf.clear();
+            txBuf.put(buf, 0, size);
+            txBuf.flip();
+            while (txBuf.hasRemaining())
+                channel.write(txBuf);
+        } catch (Exception e) {
+            System.err.println("send error!");
+            return -1;
+        }
+
+        return size;
+    }
+
+    /**
+     * Read at most size bytes into buf, and wait no longer than the timeout.
+     *
+     * @return How many bytes have been read, -1 if errors happen.
+     */
+    private int read(byte[] buf, int offset, int size) throws IOException {
+        rxBuf.clear();
+        rxBuf.limit(Math.min(size, rxBuf.capacity()));
+
+        // Returns -1 when VTIME passes without any byte
+        int n = channel.read(rxBuf);
+        if (n <= 0)
+            return 0;
+
+        rxBuf.flip();
+        rxBuf.get(buf, offset, n);
+        return n;
+    }
+
+    @Override
+    public int recv(byte[] buf, int size) {
+        long deadline = System.nanoTime() + recvTimeout * 1000000L;
+        int nr = 0;
+
+        try {
+            while (nr < size) {
+                int n = read(buf, nr, size - nr);
+                if (n == 0 && System.nanoTime() >= deadline)
+                    break;
+                nr += n;
+            }
+        } catch (Exception e) {
+            System.err.println("recv error!");
+            return -1;
+        }
+
+        return nr;
+    }
+
+    @Override
+    public int drain() {
+        long deadline = System.nanoTime() + drainTimeout * 1000000L;
+        byte[] buf = new byte[128];
+
+        try {
+            // Until a read gets nothing for VTIME
+            while (read(buf, 0, buf.length) > 0 && System.nanoTime() < deadline)
+                ;
+        } catch (Exception e) {
+            System.err.println("drain error!");
+            return -1;
+        }
+
+        return 0;
+    }
+}
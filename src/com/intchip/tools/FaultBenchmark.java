@@ -0,0 +1,72 @@
+package com.intchip.tools;
+
+import com.intchip.STK500;
+import com.intchip.Uploader;
+import com.intchip.devices.FaultInjectingDevice;
+import com.intchip.devices.FaultInjectingDevice.FaultProfile;
+import com.intchip.devices.SimulatedTarget;
+
+import java.util.Random;
+
+/**
+ * Upload a random image to a simulated target under each fault profile,
+ * and report how fast the protocol recovers from the faults.
+ *
+ * Usage: FaultBenchmark [size] [seed] [runs] [recv timeout in ms]
+ */
+public class FaultBenchmark {
+
+    private static final int BAUD = 115200;
+    private static final int PAGESIZE = 128;
+
+    public static void main(String[] arguments) {
+        int size = arguments.length > 0 ? Integer.parseInt(arguments[0]) : 8192;
+        long seed = arguments.length > 1 ? Long.parseLong(arguments[1]) : 1;
+        int runs = arguments.length > 2 ? Integer.parseInt(arguments[2]) : 3;
+        int timeout = arguments.length > 3 ? Integer.parseInt(arguments[3]) : 1000;
+
+        byte[] image = new byte[size];
+        new Random(seed).nextBytes(image);
+
+        StringBuilder report = new StringBuilder();
+
+        for (FaultProfile profile : FaultProfile.PRESETS) {
+            int ok = 0;
+            long elapsed = 0;
+            long faults = 0;
+            long recoveries = 0;
+            long recoveryNanos = 0;
+            long maxRecoveryNanos = 0;
+            double throughput = 0;
+
+            for (int run = 0; run < runs; run++) {
+                SimulatedTarget target = new SimulatedTarget("sim");
+                target.setTimeouts(timeout, Math.min(timeout, 250));
+
+                FaultInjectingDevice device =
+                        new FaultInjectingDevice(target, profile, seed + run);
+                Uploader up = new Uploader(new STK500(device), BAUD, PAGESIZE);
+
+                long start = System.nanoTime();
+                if (up.upload(image, 0) == 0)
+                    ok++;
+                elapsed += System.nanoTime() - start;
+
+                FaultInjectingDevice.Stats stats = device.getStats();
+                faults += stats.faults();
+                recoveries += stats.recoveries;
+                recoveryNanos += stats.totalRecoveryNanos;
+                maxRecoveryNanos = Math.max(maxRecoveryNanos, stats.maxRecoveryNanos);
+                throughput += stats.throughput();
+            }
+
+            report.append(String.format("%-10s ok=%d/%d time=%.0fms faults=%d recoveries=%d " +
+                            "mean-recovery=%.1fms max-recovery=%.1fms throughput=%.0fB/s%n",
+                    profile, ok, runs, elapsed / 1e6 / runs, faults, recoveries,
+                    recoveries == 0 ? 0 : recoveryNanos / 1e6 / recoveries,
+                    maxRecoveryNanos / 1e6, throughput / runs));
+        }
+
+        System.out.print(report);
+    }
+}
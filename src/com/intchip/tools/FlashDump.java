@@ -0,0 +1,68 @@
+package com.intchip.tools;
+
+import com.intchip.STK500;
+import com.intchip.Uploader;
+import com.intchip.devices.Devices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dump the whole flash or eeprom of several boards into files, one
+ * thread per board. The boards are identified by their signature.
+ *
+ * Usage: FlashDump flash|eeprom raw|hex baud port=file [port=file ...]
+ */
+public class FlashDump {
+
+    public static void main(String[] arguments) throws Exception {
+        if (arguments.length < 4) {
+            System.err.println("Usage: FlashDump flash|eeprom raw|hex baud port=file [port=file ...]");
+            System.exit(2);
+        }
+
+        final char memtype = arguments[0].equals("eeprom") ? STK500.MEM_EEPROM : STK500.MEM_FLASH;
+        final boolean hex = arguments[1].equals("hex");
+        final int baud = Integer.parseInt(arguments[2]);
+
+        final int[] failed = new int[1];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 3; i < arguments.length; i++) {
+            int eq = arguments[i].lastIndexOf('=');
+            if (eq <= 0) {
+                System.err.println("Bad argument " + arguments[i] + ", expect port=file");
+                System.exit(2);
+            }
+            final String port = arguments[i].substring(0, eq);
+            final String file = arguments[i].substring(eq + 1);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+
+                    Uploader up = new Uploader(new STK500(Devices.forName(port)), baud, 0);
+                    up.setAutoProfile(true);
+                    int ret = up.dump(file, memtype, 0, 0, hex);
+
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    synchronized (failed) {
+                        if (ret != 0)
+                            failed[0]++;
+                        System.out.println(String.format("%s: %s %s in %.2f s",
+                                port, ret == 0 ? "dumped to" : "FAILED, partial", file, seconds));
+                    }
+                }
+            }, "dump " + port);
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        System.exit(failed[0] == 0 ? 0 : 1);
+    }
+}
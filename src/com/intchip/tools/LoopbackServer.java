@@ -0,0 +1,196 @@
+package com.intchip.tools;
+
+import com.intchip.devices.SimulatedTarget;
+import com.intchip.devices.TelnetCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A local serial-over-IP server fronting a SimulatedTarget, to exercise
+ * NetworkDevice without any serial server or board. Like a real server,
+ * it serves one client at a time.
+ *
+ * With RFC 2217, a DTR low to high transition resets the target and the
+ * baud rate set by the client is applied to the target's timing model.
+ *
+ * Usage: LoopbackServer port [rfc2217] [baud]
+ */
+public class LoopbackServer
+        implements Runnable {
+
+    private final ServerSocketChannel server;
+    private final SimulatedTarget target;
+    private final boolean rfc2217;
+    private final long baud;
+
+    private boolean dtr;
+    private volatile boolean running = true;
+
+    /**
+     * @param port The local port to listen, 0 to pick a free one.
+     * @param rfc2217 Speak RFC 2217 instead of raw TCP.
+     * @param baud The baud rate of the target for raw TCP.
+     */
+    public LoopbackServer(SimulatedTarget target, int port, boolean rfc2217, long baud)
+            throws IOException {
+        this.target = target;
+        this.rfc2217 = rfc2217;
+        this.baud = baud;
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /**
+     * @return The local port the server listens on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stop the server, the current client is disconnected.
+     */
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (SocketChannel client = server.accept()) {
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                serve(client);
+            } catch (IOException e) {
+                if (running)
+                    System.err.println("LoopbackServer: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        final ByteBuffer tx = ByteBuffer.allocateDirect(8192);
+        ByteBuffer rx = ByteBuffer.allocateDirect(4096);
+        byte[] data = new byte[4096];
+
+        TelnetCodec codec = new TelnetCodec(new TelnetCodec.Listener() {
+            @Override
+            public void negotiate(int verb, int option) {
+                // Accept everything the client asks
+            }
+
+            @Override
+            public void subnegotiate(byte[] sub) {
+                if (sub.length < 2 || (sub[0] & 0xff) != TelnetCodec.OPT_COM_PORT)
+                    return;
+                comPort(sub);
+
+                byte[] ack = new byte[sub.length - 1];
+                System.arraycopy(sub, 1, ack, 0, ack.length);
+                ack[0] += TelnetCodec.COM_SERVER_OFFSET;
+                TelnetCodec.subnegotiation(tx, TelnetCodec.OPT_COM_PORT, ack);
+            }
+        });
+
+        target.open();
+        target.setspeed(baud);
+        dtr = true;
+
+        client.configureBlocking(false);
+        Selector selector = Selector.open();
+        client.register(selector, SelectionKey.OP_READ);
+
+        try {
+            while (running) {
+                rx.clear();
+                int n = client.read(rx);
+                if (n < 0)
+                    break;
+
+                if (n > 0) {
+                    rx.flip();
+                    int length;
+                    if (rfc2217) {
+                        length = codec.decode(rx, data, 0);
+                    } else {
+                        length = n;
+                        rx.get(data, 0, n);
+                    }
+                    target.feed(data, 0, length);
+                }
+
+                // Forward the answers which have arrived at the host side
+                do {
+                    n = target.poll(data, data.length / 2);
+                    if (rfc2217)
+                        TelnetCodec.escape(data, 0, n, tx);
+                    else
+                        tx.put(data, 0, n);
+
+                    tx.flip();
+                    while (tx.hasRemaining())
+                        client.write(tx);
+                    tx.clear();
+                } while (n > 0);
+
+                long pending = target.pending();
+                if (pending == 0)
+                    continue;
+                selector.select(pending < 0 ? 100 : Math.max(1, pending / 1000000L));
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            selector.close();
+            target.close();
+        }
+    }
+
+    private void comPort(byte[] sub) {
+        switch (sub[1]) {
+            case TelnetCodec.COM_SET_BAUDRATE:
+                if (sub.length >= 6) {
+                    long rate = ((sub[2] & 0xffL) << 24) | ((sub[3] & 0xff) << 16) |
+                            ((sub[4] & 0xff) << 8) | (sub[5] & 0xff);
+                    if (rate != 0)
+                        target.setspeed(rate);
+                }
+                break;
+
+            case TelnetCodec.COM_SET_CONTROL:
+                if (sub.length < 3)
+                    break;
+                if (sub[2] == TelnetCodec.CONTROL_DTR_OFF) {
+                    dtr = false;
+                } else if (sub[2] == TelnetCodec.CONTROL_DTR_ON) {
+                    // The reset pulse, the board restarts into the bootloader
+                    if (!dtr)
+                        target.reset();
+                    dtr = true;
+                }
+                break;
+        }
+    }
+
+    public static void main(String[] arguments) throws IOException {
+        int port = arguments.length > 0 ? Integer.parseInt(arguments[0]) : 2217;
+        boolean rfc2217 = arguments.length > 1 && "rfc2217".equalsIgnoreCase(arguments[1]);
+        long baud = arguments.length > 2 ? Long.parseLong(arguments[2]) : 0;
+
+        LoopbackServer server = new LoopbackServer(new SimulatedTarget("loopback"),
+                port, rfc2217, baud);
+        System.out.println("Listening on 127.0.0.1:" + server.getPort() +
+                (rfc2217 ? " (rfc2217)" : " (raw)"));
+        server.run();
+    }
+}
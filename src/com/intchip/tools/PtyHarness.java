@@ -0,0 +1,386 @@
+package com.intchip.tools;
+
+import com.intchip.STK500;
+import com.intchip.SerialDeviceInterface;
+import com.intchip.Uploader;
+import com.intchip.devices.RxTxDevice;
+import com.intchip.devices.SimulatedTarget;
+import com.intchip.devices.TermiosDevice;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exercise a real serial transport end to end on a headless Linux box,
+ * with a simulated optiboot target behind a pseudo terminal.
+ *
+ * The pty pair is made with socat if it is installed, otherwise with
+ * script(1) of util-linux, which runs a placeholder on the pty and relays
+ * the other end through its standard input and output. The transport
+ * opens the pty like a serial port, and the SimulatedTarget engine
+ * answers on the other side, with its timing model at the given baud rate.
+ *
+ * The harness checks the recv() timeout and drain(), then uploads and
+ * verifies a random image, and reports the latency of each command and
+ * the sustained throughput.
+ *
+ * Usage: PtyHarness [termios|rxtx] [size] [baud] [latency in us] [recv timeout in ms]
+ */
+public class PtyHarness {
+
+    /**
+     * A pty pair, with the SimulatedTarget engine on one end.
+     */
+    static class Pty
+            implements Closeable {
+
+        private static final String[] SOCAT = {
+                "socat", "-d", "-d", "pty,raw,echo=0", "pty,raw,echo=0"
+        };
+        private static final String[] SCRIPT = {
+                "script", "-q", "-f", "-E", "never", "-c", "tty; exec sleep 2147483647", "/dev/null"
+        };
+
+        /** The end of the pty to open as the serial port. */
+        final String port;
+        final SimulatedTarget engine;
+
+        /** Drop the answers of the engine, to test the timeouts. */
+        volatile boolean mute;
+
+        private final Process helper;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Thread writer;
+        private volatile boolean running = true;
+
+        Pty(SimulatedTarget engine) throws IOException {
+            this.engine = engine;
+
+            Process process = null;
+            InputStream input;
+            OutputStream output;
+            String[] ends = new String[2];
+            try {
+                process = new ProcessBuilder(SOCAT).start();
+
+                // socat reports "... N PTY is /dev/pts/X" for each end
+                BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                for (int i = 0; i < 2; ) {
+                    String line = err.readLine();
+                    if (line == null)
+                        throw new IOException("socat exited");
+                    int at = line.indexOf("PTY is ");
+                    if (at >= 0)
+                        ends[i++] = line.substring(at + 7).trim();
+                }
+                input = new FileInputStream(ends[1]);
+                output = new FileOutputStream(ends[1]);
+            } catch (IOException e) {
+                if (process != null)
+                    process.destroy();
+                process = new ProcessBuilder(SCRIPT).start();
+
+                // The placeholder prints the name of its pty first
+                StringBuilder name = new StringBuilder();
+                InputStream is = process.getInputStream();
+                int c;
+                while ((c = is.read()) >= 0 && c != '\n') {
+                    if (c != '\r')
+                        name.append((char) c);
+                }
+                if (!name.toString().startsWith("/dev/")) {
+                    process.destroy();
+                    throw new IOException("can't create a pty, socat or script is needed");
+                }
+                ends[0] = name.toString();
+                input = is;
+                output = process.getOutputStream();
+            }
+
+            this.helper = process;
+            this.port = ends[0];
+            this.in = input;
+            this.out = output;
+
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    answer();
+                }
+            }, "pty engine out");
+            writer.setDaemon(true);
+            writer.start();
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "pty engine in");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Feed the bytes from the transport into the engine.
+         */
+        private void receive() {
+            byte[] buf = new byte[4096];
+            try {
+                int n;
+                while (running && (n = in.read(buf)) > 0) {
+                    engine.feed(buf, 0, n);
+                    LockSupport.unpark(writer);
+                }
+            } catch (IOException e) {
+                // the pty is closed
+            }
+        }
+
+        /**
+         * Send the answers of the engine to the transport, when they are
+         * due according to the timing model.
+         */
+        private void answer() {
+            byte[] buf = new byte[4096];
+            try {
+                while (running) {
+                    long wait = engine.pending();
+                    if (wait != 0) {
+                        LockSupport.parkNanos(wait < 0 ? 10000000L : wait);
+                        continue;
+                    }
+
+                    int n = engine.poll(buf, buf.length);
+                    if (n > 0 && !mute) {
+                        out.write(buf, 0, n);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // the pty is closed
+            }
+        }
+
+        /**
+         * Send bytes to the transport as if the target sent them.
+         */
+        void inject(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            LockSupport.unpark(writer);
+            helper.destroy();
+        }
+    }
+
+    /**
+     * Measure the latency of each command, i.e. from its first byte sent
+     * to the last byte of its answer received.
+     */
+    static class TimingDevice
+            implements SerialDeviceInterface {
+
+        private final SerialDeviceInterface device;
+        private long[] latencies = new long[1024];
+        private int count;
+        private long commandStart;
+        private long lastRecv;
+        private boolean answered;
+        long bytesSent;
+        long bytesReceived;
+
+        TimingDevice(SerialDeviceInterface device) {
+            this.device = device;
+        }
+
+        private void complete() {
+            if (commandStart != 0 && answered) {
+                if (count == latencies.length)
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = lastRecv - commandStart;
+            }
+            commandStart = 0;
+            answered = false;
+        }
+
+        /**
+         * @return The latencies of the commands so far, sorted, in nanoseconds.
+         */
+        long[] latencies() {
+            complete();
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        void reset() {
+            count = 0;
+            commandStart = 0;
+            answered = false;
+            bytesSent = 0;
+            bytesReceived = 0;
+        }
+
+        @Override
+        public String getName() {
+            return device.getName();
+        }
+
+        @Override
+        public int open() {
+            return device.open();
+        }
+
+        @Override
+        public void close() {
+            complete();
+            device.close();
+        }
+
+        @Override
+        public int setspeed(long baud) {
+            return device.setspeed(baud);
+        }
+
+        @Override
+        public int send(byte[] buf, int size) {
+            if (answered)
+                complete();
+            if (commandStart == 0)
+                commandStart = System.nanoTime();
+
+            int n = device.send(buf, size);
+            if (n > 0)
+                bytesSent += n;
+            return n;
+        }
+
+        @Override
+        public int recv(byte[] buf, int size) {
+            int n = device.recv(buf, size);
+            if (n > 0) {
+                lastRecv = System.nanoTime();
+                answered = true;
+                bytesReceived += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int drain() {
+            complete();
+            return device.drain();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static void setTimeouts(SerialDeviceInterface device, int recv, int drain) {
+        if (device instanceof TermiosDevice)
+            ((TermiosDevice) device).setTimeouts(recv, drain);
+        else if (device instanceof RxTxDevice)
+            ((RxTxDevice) device).setTimeouts(recv, drain);
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        String transport = arguments.length > 0 ? arguments[0] : "termios";
+        int size = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 16384;
+        long baud = arguments.length > 2 ? Long.parseLong(arguments[2]) : 115200;
+        int latency = arguments.length > 3 ? Integer.parseInt(arguments[3]) : 0;
+        int timeout = arguments.length > 4 ? Integer.parseInt(arguments[4]) : 500;
+
+        boolean failed = false;
+
+        SimulatedTarget engine = new SimulatedTarget("pty engine");
+        engine.open();
+        engine.setspeed(baud);
+        engine.setLatency(latency);
+
+        try (Pty pty = new Pty(engine)) {
+            SerialDeviceInterface serial = transport.equals("rxtx") ?
+                    new RxTxDevice(pty.port) : new TermiosDevice(pty.port);
+            setTimeouts(serial, timeout, Math.min(timeout, 250));
+            System.out.println("Transport " + transport + " on " + pty.port + " at " + baud + " baud");
+
+            // The timeout path, the target does not answer
+            if (serial.open() != 0 || serial.setspeed(baud) != 0) {
+                System.err.println("Cannot open " + pty.port);
+                System.exit(1);
+            }
+            pty.mute = true;
+            byte[] buf = new byte[512];
+            serial.send(new byte[] {0x30, 0x20}, 2);
+            long start = System.nanoTime();
+            int n = serial.recv(buf, 1);
+            double ms = (System.nanoTime() - start) / 1e6;
+            boolean ok = n == 0 && ms >= timeout * 0.9 && ms < timeout + 250;
+            failed |= !ok;
+            System.out.println(String.format("recv timeout: %d bytes after %.1f ms, expected 0 after %d ms: %s",
+                    n, ms, timeout, ok ? "OK" : "FAIL"));
+            engine.reset();
+            pty.mute = false;
+
+            // drain() must swallow the noise, and nothing more is received
+            byte[] noise = new byte[300];
+            new Random(1).nextBytes(noise);
+            pty.inject(noise);
+            start = System.nanoTime();
+            serial.drain();
+            ms = (System.nanoTime() - start) / 1e6;
+            n = serial.recv(buf, 1);
+            ok = n == 0;
+            failed |= !ok;
+            System.out.println(String.format("drain: %d noise bytes drained in %.1f ms, %d left: %s",
+                    noise.length, ms, n, ok ? "OK" : "FAIL"));
+            serial.close();
+
+            // Upload and verify through the protocol
+            engine.reset();
+            byte[] image = new byte[size];
+            new Random(2).nextBytes(image);
+
+            TimingDevice timing = new TimingDevice(serial);
+            Uploader up = new Uploader(new STK500(timing), (int) baud, 128);
+
+            start = System.nanoTime();
+            int ret = up.upload(image, 0);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            ok = ret == 0 && Arrays.equals(Arrays.copyOf(engine.getFlash(), size), image);
+            failed |= !ok;
+
+            long[] latencies = timing.latencies();
+            System.out.println(String.format("upload: %d bytes written and verified in %.2f s: %s",
+                    size, seconds, ok ? "OK" : "FAIL"));
+            System.out.println(String.format("throughput: %.1f KB/s of image, %.1f KB/s on the wire, line limit %.1f KB/s",
+                    2.0 * size / 1024 / seconds,
+                    (timing.bytesSent + timing.bytesReceived) / 1024.0 / seconds,
+                    baud / 10.0 / 1024));
+            System.out.println(String.format("commands: %d, latency p50 %.0f us, p90 %.0f us, p99 %.0f us, max %.0f us",
+                    latencies.length,
+                    percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.90) / 1e3,
+                    percentile(latencies, 0.99) / 1e3, percentile(latencies, 1.0) / 1e3));
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+}
@@ -0,0 +1,257 @@
+package com.intchip.tools;
+
+import com.intchip.PageStore;
+import com.intchip.PagedImage;
+import com.intchip.STK500;
+import com.intchip.Uploader;
+import com.intchip.Uploader.Section;
+import com.intchip.devices.SimulatedTarget;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drive many simulated targets from one JVM at once, to find where the
+ * protocol stack stops scaling.
+ *
+ * Each session has its own SimulatedTarget, at the given baud rate and
+ * with a response latency spread between half and one and a half times
+ * the given one, as a rig of mixed usb-serial adapters. All the sessions
+ * start together and run full upload and verify cycles of the same image,
+ * on platform threads or, on Java 21 and later, on virtual threads.
+ *
+ * Every interval, the harness prints the sessions still running, the
+ * image throughput, the heap, the allocation rate and the threads of the
+ * JVM. At the end it compares the cycle times with a single session run
+ * alone: a stretch well above 1 means the sessions slow each other down.
+ *
+ * The allocation rate is measured on the live platform threads, which
+ * carry the virtual ones.
+ *
+ * Usage: SoakTest [platform|virtual] [sessions] [size] [baud] [latency in us] [cycles] [interval in ms]
+ */
+public class SoakTest {
+
+    private static final int PAGESIZE = 128;
+
+    /**
+     * The counters shared by the sessions, read by the sampler.
+     */
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+    private static final AtomicLong cycles = new AtomicLong();
+
+    /**
+     * @return An executor running each task on a new virtual thread, or
+     *          null if the JVM has none. Looked up by reflection, the
+     *          code is built for Java 8.
+     */
+    private static ExecutorService virtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the upload and verify cycles of one session.
+     *
+     * @param times Where to put the time of each cycle, in nanoseconds.
+     */
+    private static void session(String name, PagedImage image, long baud, int latency, long[] times) {
+        SimulatedTarget target = new SimulatedTarget(name);
+        target.setLatency(latency);
+
+        Uploader up = new Uploader(new STK500(target), (int) baud, PAGESIZE);
+        up.setQuiet(true);
+
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            if (up.upload(image) != 0)
+                failed.incrementAndGet();
+            times[i] = System.nanoTime() - start;
+            cycles.incrementAndGet();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * @return The bytes allocated so far by the live threads, or -1 if
+     *          the JVM can't tell.
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+        if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long bytes = 0;
+        for (long allocated : sun.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0)
+                bytes += allocated;
+        }
+        return bytes;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        String mode = arguments.length > 0 ? arguments[0] : "platform";
+        int sessions = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 1000;
+        int size = arguments.length > 2 ? Integer.parseInt(arguments[2]) : 32256;
+        long baud = arguments.length > 3 ? Long.parseLong(arguments[3]) : 115200;
+        int latency = arguments.length > 4 ? Integer.parseInt(arguments[4]) : 1000;
+        int cycleCount = arguments.length > 5 ? Integer.parseInt(arguments[5]) : 3;
+        int interval = arguments.length > 6 ? Integer.parseInt(arguments[6]) : 1000;
+
+        ExecutorService executor;
+        if (mode.equals("virtual")) {
+            executor = virtualExecutor();
+            if (executor == null) {
+                System.err.println("This JVM has no virtual threads, Java 21 or later is needed");
+                System.exit(1);
+            }
+        } else {
+            executor = Executors.newFixedThreadPool(sessions);
+        }
+
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        List<Section> sections = new ArrayList<>();
+        sections.add(new Section(0, data));
+        final PagedImage image = PagedImage.build(new PageStore(), sections, PAGESIZE);
+
+        // Warm up the JIT, then time one session alone as the reference
+        session("sim:warmup", image, 0, 0, new long[20]);
+        long[] alone = new long[3];
+        session("sim:alone", image, baud, latency, alone);
+        Arrays.sort(alone);
+        long baseline = alone[1];
+        failed.set(0);
+        cycles.set(0);
+
+        System.out.println(String.format("%s threads, %d sessions, %d bytes at %d baud, latency %d us, %d cycles",
+                mode, sessions, size, baud, latency, cycleCount));
+        System.out.println(String.format("one session alone: %.1f ms per cycle", baseline / 1e6));
+
+        final long[][] times = new long[sessions][cycleCount];
+        final CountDownLatch ready = new CountDownLatch(sessions);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        final long speed = baud;
+
+        Random random = new Random(2);
+        for (int i = 0; i < sessions; i++) {
+            final int id = i;
+            final int spread = latency / 2 + (latency > 0 ? random.nextInt(latency + 1) : 0);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    active.incrementAndGet();
+                    ready.countDown();
+                    try {
+                        go.await();
+                        session("sim:soak" + id, image, speed, spread, times[id]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        active.decrementAndGet();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        ready.await();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long peakHeap = 0;
+
+        long start = System.nanoTime();
+        long lastTime = start;
+        long lastCycles = 0;
+        long lastAllocated = allocatedBytes(threads);
+        long lastGc = gcMillis();
+        go.countDown();
+
+        do {
+            long now = System.nanoTime();
+            long count = cycles.get();
+            long allocated = allocatedBytes(threads);
+            long gc = gcMillis();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            double seconds = (now - lastTime) / 1e9;
+            peakHeap = Math.max(peakHeap, heap);
+
+            if (now > start) {
+                System.out.println(String.format("%7.1fs active=%d cycles=%d failed=%d rate=%.1f KB/s " +
+                                "heap=%d MB alloc=%s gc=%d ms threads=%d",
+                        (now - start) / 1e9, active.get(), count, failed.get(),
+                        (count - lastCycles) * image.length() / 1024.0 / seconds,
+                        heap >> 20,
+                        allocated >= 0 && lastAllocated >= 0 && allocated >= lastAllocated ?
+                                String.format("%.1f MB/s", (allocated - lastAllocated) / 1048576.0 / seconds) : "n/a",
+                        gc - lastGc, threads.getThreadCount()));
+            }
+
+            lastTime = now;
+            lastCycles = count;
+            lastAllocated = allocated;
+            lastGc = gc;
+        } while (!done.await(interval, TimeUnit.MILLISECONDS));
+
+        double wall = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        long[] all = new long[sessions * cycleCount];
+        long slowest = 0;
+        for (int i = 0; i < sessions; i++) {
+            long total = 0;
+            for (int j = 0; j < cycleCount; j++) {
+                all[i * cycleCount + j] = times[i][j];
+                total += times[i][j];
+            }
+            slowest = Math.max(slowest, total / Math.max(cycleCount, 1));
+        }
+        Arrays.sort(all);
+
+        System.out.println(String.format("done: %d cycles, %d failed, in %.1f s, %.1f KB/s of image, %.1f cycles/s",
+                all.length, failed.get(), wall, all.length * (double) image.length() / 1024 / wall, all.length / wall));
+        System.out.println(String.format("cycle: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, slowest session %.1f ms",
+                percentile(all, 0.50) / 1e6, percentile(all, 0.90) / 1e6, percentile(all, 0.99) / 1e6,
+                percentile(all, 1.0) / 1e6, slowest / 1e6));
+        System.out.println(String.format("stretch: p50 %.2f, p99 %.2f of one session alone; peak heap %d MB, peak threads %d",
+                percentile(all, 0.50) / (double) baseline, percentile(all, 0.99) / (double) baseline,
+                peakHeap >> 20, threads.getPeakThreadCount()));
+
+        System.exit(failed.get() > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,35 @@
+package com.intchip.tools;
+
+import com.intchip.Uploader;
+import com.intchip.devices.RecordingDevice;
+import com.intchip.devices.RxTxDevice;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Upload an intel hex file to a real board, and record the whole serial
+ * session into a trace file for TraceReplay.
+ *
+ * Usage: TraceRecord ihex tty trace [baud] [pagesize]
+ */
+public class TraceRecord {
+
+    public static void main(String[] arguments) throws Exception {
+        if (arguments.length < 3) {
+            System.err.println("Usage: TraceRecord ihex tty trace [baud] [pagesize]");
+            System.exit(2);
+        }
+
+        int baud = arguments.length > 3 ? Integer.parseInt(arguments[3]) : 115200;
+        int pagesize = arguments.length > 4 ? Integer.parseInt(arguments[4]) : 128;
+
+        int ret;
+        try (OutputStream os = new FileOutputStream(arguments[2])) {
+            ret = Uploader.avrdude(arguments[0],
+                    new RecordingDevice(new RxTxDevice(arguments[1]), os), baud, pagesize);
+        }
+
+        System.exit(ret == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,78 @@
+package com.intchip.tools;
+
+import com.intchip.Uploader;
+import com.intchip.devices.ReplayDevice;
+import com.intchip.devices.SerialTrace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+
+/**
+ * Replay a trace recorded by TraceRecord against the same intel hex file,
+ * and fail if the session diverges from the trace, or if it runs slower
+ * than the recorded one by more than the tolerance.
+ *
+ * Since the device calls take their recorded (scaled) time, any slowdown
+ * comes from the host side, i.e. from STK500 and Uploader.
+ *
+ * Usage: TraceReplay trace ihex [pagesize] [timescale] [tolerance]
+ */
+public class TraceReplay {
+
+    public static void main(String[] arguments) throws Exception {
+        if (arguments.length < 2) {
+            System.err.println("Usage: TraceReplay trace ihex [pagesize] [timescale] [tolerance]");
+            System.exit(2);
+        }
+
+        int pagesize = arguments.length > 2 ? Integer.parseInt(arguments[2]) : 128;
+        double timescale = arguments.length > 3 ? Double.parseDouble(arguments[3]) : 1.0;
+        double tolerance = arguments.length > 4 ? Double.parseDouble(arguments[4]) : 0.10;
+
+        SerialTrace trace;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(arguments[0])))) {
+            trace = SerialTrace.read(in);
+        }
+
+        // The baud rate is replayed from the trace as well
+        long baud = 115200;
+        for (SerialTrace.Event ev : trace.getEvents()) {
+            if (ev.op == SerialTrace.OP_SETSPEED) {
+                baud = ev.arg;
+                break;
+            }
+        }
+
+        ReplayDevice device = new ReplayDevice(trace, timescale);
+
+        // Timed by the device, from its first call to its last one as in
+        // the recording, without parsing the file and setting up.
+        Uploader.avrdude(arguments[1], device, (int) baud, pagesize);
+        long elapsed = device.getElapsedNanos();
+
+        long recordedHost = trace.elapsedNanos() - trace.deviceNanos();
+        long expected = (long) (trace.deviceNanos() * timescale) + recordedHost;
+        long host = elapsed - device.getDeviceNanos();
+
+        System.out.println(String.format("recorded: total=%.1fms device=%.1fms host=%.1fms",
+                trace.elapsedNanos() / 1e6, trace.deviceNanos() / 1e6, recordedHost / 1e6));
+        System.out.println(String.format("replayed: total=%.1fms device=%.1fms host=%.1fms (expected total %.1fms)",
+                elapsed / 1e6, device.getDeviceNanos() / 1e6, host / 1e6, expected / 1e6));
+
+        if (!device.isComplete()) {
+            String reason = device.getDivergence();
+            System.err.println("Replay diverged: " + (reason != null ? reason : "trace not finished"));
+            System.exit(1);
+        }
+
+        if (elapsed > expected * (1 + tolerance)) {
+            System.err.println(String.format("Latency regression: %.1f%% slower than recorded",
+                    (elapsed - expected) * 100.0 / expected));
+            System.exit(1);
+        }
+
+        System.out.println("Replay OK.");
+    }
+}
@@ -0,0 +1,127 @@
+package com.intchip.tools;
+
+import com.intchip.PageStore;
+import com.intchip.PagedImage;
+import com.intchip.STK500v2;
+import com.intchip.Uploader;
+import com.intchip.Uploader.Section;
+import com.intchip.devices.SimulatedTarget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Upload images with gaps to a simulated Mega 2560 over STK500v2, and check
+ * the whole flash afterwards.
+ *
+ * The wiring bootloader erases the pages in turn from its erase pointer,
+ * not at the loaded address, so an image that skips pages can leave stale
+ * bytes behind, or get its own bytes ANDed with them, while the verify of
+ * the written bytes alone may pass. The flash of each target starts with
+ * random bytes, as left by an older sketch, and every page up to the end
+ * of the image must hold the image or 0xff.
+ *
+ * Usage: WiringHarness [seed]
+ */
+public class WiringHarness {
+
+    private static final int BAUD = 115200;
+    private static final int PAGESIZE = 256;
+    private static final byte[] SIGNATURE = {0x1e, (byte) 0x98, 0x01};
+
+    private static byte[] random(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Upload the sections, with the patches if any, and compare the flash
+     * with what it should hold.
+     *
+     * @return The count of wrong bytes, -1 if the upload failed.
+     */
+    private static int run(String name, List<Section> sections, Map<Integer, byte[]> patches, long seed) {
+        SimulatedTarget target = new SimulatedTarget(name, 256 * 1024, 4096, PAGESIZE, SIGNATURE);
+        new Random(seed).nextBytes(target.getFlash());
+
+        Uploader up = new Uploader(new STK500v2(target), BAUD, PAGESIZE);
+        up.setQuiet(true);
+
+        int ret;
+        if (patches.isEmpty()) {
+            ret = up.upload(sections);
+        } else {
+            PagedImage image = PagedImage.build(new PageStore(), sections, PAGESIZE);
+            ret = up.upload(image.patch(patches));
+        }
+        if (ret != 0)
+            return -1;
+
+        // The image, then the patches over it
+        List<Section> expected = new ArrayList<>(sections);
+        for (Map.Entry<Integer, byte[]> patch : patches.entrySet())
+            expected.add(new Section(patch.getKey(), patch.getValue()));
+
+        int end = 0;
+        for (Section section : expected)
+            end = Math.max(end, section.address + section.content.length);
+        end = (end + PAGESIZE - 1) / PAGESIZE * PAGESIZE;
+
+        byte[] flash = new byte[end];
+        Arrays.fill(flash, (byte) 0xff);
+        for (Section section : expected)
+            System.arraycopy(section.content, 0, flash, section.address, section.content.length);
+
+        int wrong = 0;
+        for (int i = 0; i < end; i++) {
+            if (target.getFlash()[i] != flash[i])
+                wrong++;
+        }
+        return wrong;
+    }
+
+    public static void main(String[] arguments) {
+        long seed = arguments.length > 0 ? Long.parseLong(arguments[0]) : 1;
+        Random random = new Random(seed);
+        Map<Integer, byte[]> none = new HashMap<>();
+        int failed = 0;
+
+        String[] names = {"contiguous", "gapped", "offset", "patched past the end"};
+        for (int i = 0; i < names.length; i++) {
+            List<Section> sections = new ArrayList<>();
+            Map<Integer, byte[]> patches = none;
+
+            switch (i) {
+                case 0:
+                    sections.add(new Section(0, random(random, 8192)));
+                    break;
+                case 1:
+                    sections.add(new Section(0, random(random, 2048)));
+                    sections.add(new Section(0x2000, random(random, 1024)));
+                    sections.add(new Section(0x3100, random(random, 300)));
+                    break;
+                case 2:
+                    sections.add(new Section(0x4000, random(random, 4096)));
+                    break;
+                default:
+                    sections.add(new Section(0, random(random, 4096)));
+                    patches = new HashMap<>();
+                    patches.put(0x10010, random(random, 16));
+                    break;
+            }
+
+            int wrong = run("sim:" + i, sections, patches, seed + i);
+            if (wrong != 0)
+                failed++;
+            System.out.println(String.format("%-22s %s", names[i],
+                    wrong < 0 ? "upload failed" : wrong == 0 ? "ok" : wrong + " wrong bytes"));
+        }
+
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}